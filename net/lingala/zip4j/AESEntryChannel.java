@@ -0,0 +1,271 @@
+/*
+* Copyright 2010 Srikanth Reddy Lingala  
+* 
+* Licensed under the Apache License, Version 2.0 (the "License"); 
+* you may not use this file except in compliance with the License. 
+* You may obtain a copy of the License at 
+* 
+* http://www.apache.org/licenses/LICENSE-2.0 
+* 
+* Unless required by applicable law or agreed to in writing, 
+* software distributed under the License is distributed on an "AS IS" BASIS, 
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+* See the License for the specific language governing permissions and 
+* limitations under the License. 
+*/
+
+package net.lingala.zip4j;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+import java.util.Arrays;
+
+import net.lingala.zip4j.crypto.AESEncrypter;
+import net.lingala.zip4j.crypto.AESKeyMaterial;
+import net.lingala.zip4j.crypto.IKeystreamGenerator;
+import net.lingala.zip4j.crypto.PBKDF2.MacBasedPRF;
+import net.lingala.zip4j.model.AESExtraDataRecord;
+import net.lingala.zip4j.model.FileHeader;
+import net.lingala.zip4j.model.LocalFileHeader;
+import net.lingala.zip4j.model.ZipModel;
+import net.lingala.zip4j.util.HeaderReader;
+import net.lingala.zip4j.util.InternalZipConstants;
+import net.lingala.zip4j.util.Raw;
+import net.lingala.zip4j.util.Zip4jConstants;
+import net.lingala.zip4j.util.Zip4jUtil;
+
+/**
+ * Read only channel over the plain data of one stored (not compressed) AES
+ * entry. AES-CTR keystream can be computed for any block on its own, so a
+ * read at any position decrypts just the blocks it covers, starting with the
+ * counter position / 16 + 1.
+ * 
+ * Reads do not authenticate the data. Call checkMac to verify the whole entry
+ * against its stored MAC. The channel is not safe for use by several threads.
+ */
+public class AESEntryChannel implements SeekableByteChannel {
+	
+	private RandomAccessFile raf;
+	private FileChannel fileChannel;
+	
+	private IKeystreamGenerator keystreamGenerator;
+	private byte[] aesKey;
+	private byte[] macKey;
+	
+	private long dataStart;
+	private long size;
+	private long position;
+	
+	private byte[] buff;
+	private byte[] keystream;
+	
+	public AESEntryChannel(String zipFile, String fileNameInZip, char[] password) throws IOException {
+		this(zipFile, fileNameInZip, password, Zip4jConstants.KEYSTREAM_BACKEND_AUTO);
+	}
+	
+	/**
+	 * @param zipFile path of the zip file
+	 * @param fileNameInZip name of the entry as stored in the zip file
+	 * @param password
+	 * @param keystreamBackend one of Zip4jConstants.KEYSTREAM_BACKEND_*
+	 * @throws IOException
+	 */
+	public AESEntryChannel(String zipFile, String fileNameInZip, char[] password, int keystreamBackend) throws IOException {
+		if (!Zip4jUtil.isStringNotNullAndNotEmpty(zipFile) || !Zip4jUtil.isStringNotNullAndNotEmpty(fileNameInZip)) {
+			throw new RuntimeException("zip file or file name is empty, cannot open entry");
+		}
+		if (password == null || password.length == 0) {
+			throw new RuntimeException("password is empty, cannot open entry");
+		}
+		
+		raf = new RandomAccessFile(zipFile, InternalZipConstants.READ_MODE);
+		try {
+			open(fileNameInZip, password, keystreamBackend);
+		} catch (RuntimeException e) {
+			close();
+			throw e;
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+	}
+	
+	private void open(String fileNameInZip, char[] password, int keystreamBackend) throws IOException {
+		HeaderReader headerReader = new HeaderReader(raf);
+		ZipModel zipModel = headerReader.readAllHeaders();
+		
+		FileHeader fileHeader = null;
+		for (FileHeader header : zipModel.getCentralDirectory().getFileHeaders()) {
+			if (fileNameInZip.equals(header.getFileName())) {
+				fileHeader = header;
+				break;
+			}
+		}
+		if (fileHeader == null) {
+			throw new RuntimeException("file " + fileNameInZip + " not found in zip file");
+		}
+		
+		AESExtraDataRecord aesExtraDataRecord = fileHeader.getAesExtraDataRecord();
+		if (!fileHeader.isEncrypted() || aesExtraDataRecord == null) {
+			throw new RuntimeException("file " + fileNameInZip + " is not AES encrypted");
+		}
+		if (aesExtraDataRecord.getCompressionMethod() != Zip4jConstants.COMP_STORE) {
+			throw new RuntimeException("random access is only possible for stored entries: " + fileNameInZip);
+		}
+		
+		int keyStrength = aesExtraDataRecord.getAesStrength();
+		int saltLength = AESEncrypter.getKeyLength(keyStrength) / 2;
+		size = fileHeader.getCompressedSize() - saltLength - 2 - InternalZipConstants.AES_AUTH_LENGTH;
+		if (size < 0) {
+			throw new RuntimeException("invalid compressed size for AES entry: " + fileNameInZip);
+		}
+		
+		LocalFileHeader localFileHeader = headerReader.readLocalFileHeader(fileHeader);
+		byte[] saltBytes = new byte[saltLength];
+		byte[] passwordVerifier = new byte[2];
+		raf.seek(localFileHeader.getOffsetStartOfData());
+		raf.readFully(saltBytes);
+		raf.readFully(passwordVerifier);
+		dataStart = localFileHeader.getOffsetStartOfData() + saltLength + 2;
+		
+		AESKeyMaterial keyMaterial = AESEncrypter.deriveKeyMaterial(password, saltBytes, keyStrength, null, passwordVerifier);
+		aesKey = keyMaterial.getAesKey();
+		macKey = keyMaterial.getMacKey();
+		keystreamGenerator = AESEncrypter.createKeystreamGenerator(keystreamBackend, aesKey);
+		
+		buff = new byte[InternalZipConstants.BUFF_SIZE];
+		// one block extra for a read that does not start on a block boundary
+		keystream = new byte[InternalZipConstants.BUFF_SIZE + InternalZipConstants.AES_BLOCK_SIZE];
+		fileChannel = raf.getChannel();
+	}
+	
+	public int read(ByteBuffer dst) throws IOException {
+		ensureOpen();
+		if (position >= size) {
+			return -1;
+		}
+		
+		int total = 0;
+		while (dst.hasRemaining() && position < size) {
+			int len = (int)Math.min(Math.min(dst.remaining(), buff.length), size - position);
+			readFully(buff, len, dataStart + position);
+			decrypt(buff, len, position);
+			dst.put(buff, 0, len);
+			position += len;
+			total += len;
+		}
+		Arrays.fill(buff, (byte)0);
+		return total;
+	}
+	
+	/**
+	 * XORs len bytes of ciphertext with the keystream for the entry offset
+	 * they were read from
+	 */
+	private void decrypt(byte[] data, int len, long offset) {
+		int skip = (int)(offset % InternalZipConstants.AES_BLOCK_SIZE);
+		int nonce = (int)(offset / InternalZipConstants.AES_BLOCK_SIZE) + 1;
+		int blocks = (skip + len + InternalZipConstants.AES_BLOCK_SIZE - 1) / InternalZipConstants.AES_BLOCK_SIZE;
+		keystreamGenerator.generate(nonce, keystream, 0, blocks);
+		Raw.xorBytes(data, 0, keystream, skip, len);
+	}
+	
+	/**
+	 * Computes the MAC over all the ciphertext of the entry and compares it
+	 * with the stored one. Does not change the position of the channel.
+	 * @return true if the entry is intact
+	 * @throws IOException
+	 */
+	public boolean checkMac() throws IOException {
+		ensureOpen();
+		MacBasedPRF mac = new MacBasedPRF("HmacSHA1");
+		byte[] macBuff = new byte[InternalZipConstants.BUFF_SIZE];
+		try {
+			mac.init(macKey);
+			long offset = 0;
+			while (offset < size) {
+				int len = (int)Math.min(macBuff.length, size - offset);
+				readFully(macBuff, len, dataStart + offset);
+				mac.update(macBuff, 0, len);
+				offset += len;
+			}
+			
+			byte[] storedMac = new byte[InternalZipConstants.AES_AUTH_LENGTH];
+			readFully(storedMac, storedMac.length, dataStart + size);
+			byte[] calculatedMac = Arrays.copyOf(mac.doFinal(), InternalZipConstants.AES_AUTH_LENGTH);
+			return Arrays.equals(storedMac, calculatedMac);
+		} finally {
+			mac.release();
+		}
+	}
+	
+	private void readFully(byte[] b, int len, long filePosition) throws IOException {
+		ByteBuffer byteBuffer = ByteBuffer.wrap(b, 0, len);
+		while (byteBuffer.hasRemaining()) {
+			if (fileChannel.read(byteBuffer, filePosition + byteBuffer.position()) < 0) {
+				throw new RuntimeException("unexpected end of zip file");
+			}
+		}
+	}
+	
+	private void ensureOpen() throws IOException {
+		if (fileChannel == null) {
+			throw new ClosedChannelException();
+		}
+	}
+	
+	public int write(ByteBuffer src) throws IOException {
+		throw new NonWritableChannelException();
+	}
+	
+	public long position() throws IOException {
+		ensureOpen();
+		return position;
+	}
+	
+	public SeekableByteChannel position(long newPosition) throws IOException {
+		ensureOpen();
+		if (newPosition < 0) {
+			throw new IllegalArgumentException("negative position");
+		}
+		position = newPosition;
+		return this;
+	}
+	
+	/**
+	 * @return the size of the plain data of the entry
+	 */
+	public long size() throws IOException {
+		ensureOpen();
+		return size;
+	}
+	
+	public SeekableByteChannel truncate(long size) throws IOException {
+		throw new NonWritableChannelException();
+	}
+	
+	public boolean isOpen() {
+		return fileChannel != null;
+	}
+	
+	/**
+	 * Closes the zip file and wipes the keys
+	 */
+	public void close() throws IOException {
+		fileChannel = null;
+		if (aesKey != null) {
+			Arrays.fill(aesKey, (byte)0);
+			Arrays.fill(macKey, (byte)0);
+			Arrays.fill(keystream, (byte)0);
+		}
+		if (raf != null) {
+			raf.close();
+		}
+	}
+	
+}
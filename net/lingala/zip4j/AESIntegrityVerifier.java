@@ -0,0 +1,254 @@
+/*
+* Copyright 2010 Srikanth Reddy Lingala  
+* 
+* Licensed under the Apache License, Version 2.0 (the "License"); 
+* you may not use this file except in compliance with the License. 
+* You may obtain a copy of the License at 
+* 
+* http://www.apache.org/licenses/LICENSE-2.0 
+* 
+* Unless required by applicable law or agreed to in writing, 
+* software distributed under the License is distributed on an "AS IS" BASIS, 
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+* See the License for the specific language governing permissions and 
+* limitations under the License. 
+*/
+
+package net.lingala.zip4j;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import net.lingala.zip4j.crypto.AESEncrypter;
+import net.lingala.zip4j.crypto.AESKeyMaterial;
+import net.lingala.zip4j.crypto.PBKDF2.MacBasedPRF;
+import net.lingala.zip4j.model.FileHeader;
+import net.lingala.zip4j.model.LocalFileHeader;
+import net.lingala.zip4j.model.ZipModel;
+import net.lingala.zip4j.util.HeaderReader;
+import net.lingala.zip4j.util.InternalZipConstants;
+import net.lingala.zip4j.util.Zip4jUtil;
+
+/**
+ * Checks the stored MAC of every AES entry of a zip file. The MAC of WinZip
+ * AES is computed over the ciphertext, so nothing is decrypted or inflated,
+ * and entries are checked independently of each other on an executor.
+ */
+public class AESIntegrityVerifier {
+	
+	/**
+	 * Outcome of the check of one entry
+	 */
+	public static class EntryResult {
+		
+		private final FileHeader fileHeader;
+		private final boolean macValid;
+		
+		EntryResult(FileHeader fileHeader, boolean macValid) {
+			this.fileHeader = fileHeader;
+			this.macValid = macValid;
+		}
+		
+		public FileHeader getFileHeader() {
+			return fileHeader;
+		}
+		
+		/**
+		 * @return true if the stored MAC matches the entry data
+		 */
+		public boolean isMacValid() {
+			return macValid;
+		}
+	}
+	
+	private AESIntegrityVerifier() {
+	}
+	
+	/**
+	 * @param zipFile path of the zip file
+	 * @param password password of the AES entries
+	 * @param executor executor to check the entries on, null to check them on the calling thread
+	 * @return one result per AES entry in central directory order, so entries sharing a
+	 * name are reported separately. An entry whose password verifier does not match the
+	 * password is reported as failed. Entries that are not AES encrypted are left out.
+	 */
+	public static List<EntryResult> verify(String zipFile, char[] password, Executor executor) {
+		if (!Zip4jUtil.isStringNotNullAndNotEmpty(zipFile)) {
+			throw new RuntimeException("zip file path is empty, cannot verify");
+		}
+		if (password == null || password.length == 0) {
+			throw new RuntimeException("password is empty, cannot verify");
+		}
+		
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(zipFile, InternalZipConstants.READ_MODE);
+			HeaderReader headerReader = new HeaderReader(raf);
+			ZipModel zipModel = headerReader.readAllHeaders();
+			final FileChannel fileChannel = raf.getChannel();
+			final char[] entryPassword = password;
+			final AtomicBoolean cancelled = new AtomicBoolean();
+			
+			List<FileHeader> fileHeaders = new ArrayList<FileHeader>();
+			List<FutureTask<Boolean>> tasks = new ArrayList<FutureTask<Boolean>>();
+			List<EntryResult> result = new ArrayList<EntryResult>();
+			try {
+				for (final FileHeader fileHeader : zipModel.getCentralDirectory().getFileHeaders()) {
+					if (!fileHeader.isEncrypted() || fileHeader.getAesExtraDataRecord() == null) {
+						continue;
+					}
+					// local headers are read here, the positional reads of the tasks do not move the file pointer
+					LocalFileHeader header = null;
+					try {
+						header = headerReader.readLocalFileHeader(fileHeader);
+					} catch (RuntimeException e) {
+						// damaged local header, reported as a failed entry
+					}
+					final LocalFileHeader localFileHeader = header;
+					FutureTask<Boolean> task = new FutureTask<Boolean>(new Callable<Boolean>() {
+						public Boolean call() throws IOException {
+							if (localFileHeader == null || cancelled.get()) {
+								return Boolean.FALSE;
+							}
+							try {
+								return Boolean.valueOf(verifyEntry(fileChannel, fileHeader, localFileHeader, entryPassword, cancelled));
+							} catch (RuntimeException e) {
+								// truncated entry
+								return Boolean.FALSE;
+							}
+						}
+					});
+					if (executor == null) {
+						task.run();
+					} else {
+						executor.execute(task);
+					}
+					fileHeaders.add(fileHeader);
+					tasks.add(task);
+				}
+				
+				for (int i = 0; i < tasks.size(); i++) {
+					result.add(new EntryResult(fileHeaders.get(i), getResult(tasks.get(i)).booleanValue()));
+				}
+			} catch (RuntimeException e) {
+				// the file is closed on the way out, the submitted tasks must be done reading it by then
+				cancelled.set(true);
+				awaitAll(tasks);
+				throw e;
+			}
+			return result;
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} finally {
+			if (raf != null) {
+				try {
+					raf.close();
+				} catch (IOException e) {
+					//ignore
+				}
+			}
+		}
+	}
+	
+	private static Boolean getResult(FutureTask<Boolean> task) {
+		try {
+			return task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+	}
+	
+	/**
+	 * Waits for every task to complete, whatever its outcome, without
+	 * giving up on interrupts
+	 */
+	private static void awaitAll(List<FutureTask<Boolean>> tasks) {
+		boolean interrupted = false;
+		for (FutureTask<Boolean> task : tasks) {
+			while (true) {
+				try {
+					task.get();
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				} catch (ExecutionException e) {
+					break;
+				}
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	private static boolean verifyEntry(FileChannel fileChannel, FileHeader fileHeader, LocalFileHeader localFileHeader,
+			char[] password, AtomicBoolean cancelled) throws IOException {
+		int keyStrength = fileHeader.getAesExtraDataRecord().getAesStrength();
+		int saltLength = AESEncrypter.getKeyLength(keyStrength) / 2;
+		long dataLength = fileHeader.getCompressedSize() - saltLength - 2 - InternalZipConstants.AES_AUTH_LENGTH;
+		if (dataLength < 0) {
+			return false;
+		}
+		
+		long position = localFileHeader.getOffsetStartOfData();
+		byte[] saltBytes = new byte[saltLength];
+		byte[] passwordVerifier = new byte[2];
+		readFully(fileChannel, saltBytes, saltLength, position);
+		readFully(fileChannel, passwordVerifier, 2, position + saltLength);
+		position += saltLength + 2;
+		
+		AESKeyMaterial keyMaterial;
+		try {
+			keyMaterial = AESEncrypter.deriveKeyMaterial(password, saltBytes, keyStrength, null, passwordVerifier);
+		} catch (RuntimeException e) {
+			// wrong password, or a damaged salt or verifier
+			return false;
+		}
+		
+		MacBasedPRF mac = new MacBasedPRF("HmacSHA1");
+		try {
+			mac.init(keyMaterial.getMacKey());
+			byte[] buff = new byte[InternalZipConstants.BUFF_SIZE * 4];
+			while (dataLength > 0) {
+				if (cancelled.get()) {
+					return false;
+				}
+				int len = (int)Math.min(buff.length, dataLength);
+				readFully(fileChannel, buff, len, position);
+				mac.update(buff, 0, len);
+				position += len;
+				dataLength -= len;
+			}
+			
+			byte[] storedMac = new byte[InternalZipConstants.AES_AUTH_LENGTH];
+			readFully(fileChannel, storedMac, storedMac.length, position);
+			return Arrays.equals(storedMac, Arrays.copyOf(mac.doFinal(), InternalZipConstants.AES_AUTH_LENGTH));
+		} finally {
+			mac.release();
+			keyMaterial.clear();
+		}
+	}
+	
+	private static void readFully(FileChannel fileChannel, byte[] b, int len, long position) throws IOException {
+		ByteBuffer byteBuffer = ByteBuffer.wrap(b, 0, len);
+		while (byteBuffer.hasRemaining()) {
+			if (fileChannel.read(byteBuffer, position + byteBuffer.position()) < 0) {
+				throw new RuntimeException("unexpected end of zip file");
+			}
+		}
+	}
+	
+}
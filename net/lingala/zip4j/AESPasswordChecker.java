@@ -0,0 +1,97 @@
+/*
+* Copyright 2010 Srikanth Reddy Lingala  
+* 
+* Licensed under the Apache License, Version 2.0 (the "License"); 
+* you may not use this file except in compliance with the License. 
+* You may obtain a copy of the License at 
+* 
+* http://www.apache.org/licenses/LICENSE-2.0 
+* 
+* Unless required by applicable law or agreed to in writing, 
+* software distributed under the License is distributed on an "AS IS" BASIS, 
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+* See the License for the specific language governing permissions and 
+* limitations under the License. 
+*/
+
+package net.lingala.zip4j;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import net.lingala.zip4j.crypto.AESEncrypter;
+import net.lingala.zip4j.model.FileHeader;
+import net.lingala.zip4j.model.LocalFileHeader;
+import net.lingala.zip4j.model.ZipModel;
+import net.lingala.zip4j.util.HeaderReader;
+import net.lingala.zip4j.util.InternalZipConstants;
+import net.lingala.zip4j.util.Zip4jUtil;
+
+/**
+ * Checks a password against the verifier stored in front of the data of an
+ * AES entry, without reading or decrypting any of the data. Only the PBKDF2
+ * block holding the verifier is derived, so a wrong password is rejected in
+ * milliseconds whatever the size of the entry. The verifier is 2 bytes, so
+ * about 1 in 65536 wrong passwords still passes and is only caught by the MAC.
+ */
+public class AESPasswordChecker {
+	
+	private AESPasswordChecker() {
+	}
+	
+	/**
+	 * @param zipFile path of the zip file
+	 * @param fileNameInZip name of an AES encrypted entry, null for the first one
+	 * @param password
+	 * @return true if the password matches the verifier of the entry
+	 */
+	public static boolean isPasswordCorrect(String zipFile, String fileNameInZip, char[] password) {
+		if (!Zip4jUtil.isStringNotNullAndNotEmpty(zipFile)) {
+			throw new RuntimeException("zip file path is empty, cannot check password");
+		}
+		
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(zipFile, InternalZipConstants.READ_MODE);
+			HeaderReader headerReader = new HeaderReader(raf);
+			ZipModel zipModel = headerReader.readAllHeaders();
+			
+			FileHeader fileHeader = null;
+			for (FileHeader header : zipModel.getCentralDirectory().getFileHeaders()) {
+				boolean isAES = header.isEncrypted() && header.getAesExtraDataRecord() != null;
+				if (fileNameInZip == null ? isAES : fileNameInZip.equals(header.getFileName())) {
+					fileHeader = header;
+					break;
+				}
+			}
+			if (fileHeader == null) {
+				throw new RuntimeException(fileNameInZip == null ? "no AES encrypted file in zip file" :
+					"file " + fileNameInZip + " not found in zip file");
+			}
+			if (!fileHeader.isEncrypted() || fileHeader.getAesExtraDataRecord() == null) {
+				throw new RuntimeException("file " + fileNameInZip + " is not AES encrypted");
+			}
+			
+			int keyStrength = fileHeader.getAesExtraDataRecord().getAesStrength();
+			LocalFileHeader localFileHeader = headerReader.readLocalFileHeader(fileHeader);
+			byte[] saltBytes = new byte[AESEncrypter.getKeyLength(keyStrength) / 2];
+			byte[] passwordVerifier = new byte[2];
+			raf.seek(localFileHeader.getOffsetStartOfData());
+			raf.readFully(saltBytes);
+			raf.readFully(passwordVerifier);
+			
+			return AESEncrypter.checkPassword(password, saltBytes, keyStrength, passwordVerifier);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} finally {
+			if (raf != null) {
+				try {
+					raf.close();
+				} catch (IOException e) {
+					//ignore
+				}
+			}
+		}
+	}
+	
+}
@@ -0,0 +1,274 @@
+/*
+* Copyright 2010 Srikanth Reddy Lingala  
+* 
+* Licensed under the Apache License, Version 2.0 (the "License"); 
+* you may not use this file except in compliance with the License. 
+* You may obtain a copy of the License at 
+* 
+* http://www.apache.org/licenses/LICENSE-2.0 
+* 
+* Unless required by applicable law or agreed to in writing, 
+* software distributed under the License is distributed on an "AS IS" BASIS, 
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+* See the License for the specific language governing permissions and 
+* limitations under the License. 
+*/
+
+package net.lingala.zip4j;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import net.lingala.zip4j.crypto.AESDecrypter;
+import net.lingala.zip4j.crypto.AESEncrypter;
+import net.lingala.zip4j.model.AESExtraDataRecord;
+import net.lingala.zip4j.model.CentralDirectory;
+import net.lingala.zip4j.model.EndCentralDirRecord;
+import net.lingala.zip4j.model.FileHeader;
+import net.lingala.zip4j.model.LocalFileHeader;
+import net.lingala.zip4j.model.ZipModel;
+import net.lingala.zip4j.util.HeaderReader;
+import net.lingala.zip4j.util.HeaderWriter;
+import net.lingala.zip4j.util.InternalZipConstants;
+import net.lingala.zip4j.util.Zip4jConstants;
+import net.lingala.zip4j.util.Zip4jUtil;
+
+/**
+ * Rewrites an existing zip file with every AES entry encrypted under a new
+ * password. WinZip AES encrypts the compressed stream as it is, so each entry
+ * is decrypted and encrypted again chunk by chunk, without inflating or
+ * deflating anything. Unencrypted entries are copied unchanged.
+ * 
+ * Only the records this library writes itself are carried over: extra fields
+ * other than zip64 and AES, and file comments, are dropped.
+ */
+public class AESReEncrypter {
+	
+	private AESReEncrypter() {
+	}
+	
+	/**
+	 * @param zipFile path of the zip file to read
+	 * @param outputStream stream the re-encrypted zip file is written to, left open
+	 * @param oldPassword password the AES entries are currently encrypted with
+	 * @param zipParameters new password and encryption options. An AES key strength
+	 * of -1 keeps the strength of each entry.
+	 * @return number of bytes written
+	 */
+	public static long reEncrypt(String zipFile, OutputStream outputStream, char[] oldPassword, ZipParameters zipParameters) {
+		if (!Zip4jUtil.isStringNotNullAndNotEmpty(zipFile)) {
+			throw new RuntimeException("zip file path is empty, cannot re-encrypt");
+		}
+		if (outputStream == null || zipParameters == null) {
+			throw new RuntimeException("input parameters are null, cannot re-encrypt");
+		}
+		if (oldPassword == null || oldPassword.length == 0 ||
+				zipParameters.getPassword() == null || zipParameters.getPassword().length == 0) {
+			throw new RuntimeException("old or new password is empty, cannot re-encrypt");
+		}
+		
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(zipFile, InternalZipConstants.READ_MODE);
+			HeaderReader headerReader = new HeaderReader(raf);
+			ZipModel sourceModel = headerReader.readAllHeaders();
+			
+			ZipModel zipModel = new ZipModel();
+			EndCentralDirRecord endCentralDirRecord = new EndCentralDirRecord();
+			endCentralDirRecord.setSignature(InternalZipConstants.ENDSIG);
+			endCentralDirRecord.setComment(sourceModel.getEndCentralDirRecord().getComment());
+			endCentralDirRecord.setCommentBytes(sourceModel.getEndCentralDirRecord().getCommentBytes());
+			endCentralDirRecord.setCommentLength(sourceModel.getEndCentralDirRecord().getCommentLength());
+			zipModel.setEndCentralDirRecord(endCentralDirRecord);
+			zipModel.setCentralDirectory(new CentralDirectory());
+			zipModel.getCentralDirectory().setFileHeaders(new ArrayList<FileHeader>());
+			
+			HeaderWriter headerWriter = new HeaderWriter();
+			long totalBytesWritten = 0;
+			for (FileHeader fileHeader : sourceModel.getCentralDirectory().getFileHeaders()) {
+				LocalFileHeader sourceLocalHeader = headerReader.readLocalFileHeader(fileHeader);
+				totalBytesWritten += copyEntry(raf, sourceLocalHeader, fileHeader, zipModel, headerWriter,
+						outputStream, totalBytesWritten, oldPassword, zipParameters);
+			}
+			
+			zipModel.getEndCentralDirRecord().setOffsetOfStartOfCentralDir(totalBytesWritten);
+			headerWriter.finalizeZipFile(zipModel, outputStream);
+			return totalBytesWritten + headerWriter.out_length;
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} finally {
+			if (raf != null) {
+				try {
+					raf.close();
+				} catch (IOException e) {
+					//ignore
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Writes one entry at offset, and adds its central directory header to the zip model
+	 * @return number of bytes written
+	 */
+	private static long copyEntry(RandomAccessFile raf, LocalFileHeader sourceLocalHeader, FileHeader fileHeader,
+			ZipModel zipModel, HeaderWriter headerWriter, OutputStream outputStream, long offset,
+			char[] oldPassword, ZipParameters zipParameters) throws IOException {
+		
+		boolean isAES = fileHeader.isEncrypted() && fileHeader.getAesExtraDataRecord() != null;
+		if (fileHeader.isEncrypted() && !isAES) {
+			throw new RuntimeException("only AES encrypted entries can be re-encrypted: " + fileHeader.getFileName());
+		}
+		
+		// names are written back in the charset this library picks for them
+		String fileName = fileHeader.getFileName();
+		byte[] generalPurposeFlag = fileHeader.getGeneralPurposeFlag().clone();
+		fileHeader.setFileNameLength(Zip4jUtil.getEncodedStringLength(fileName));
+		if (Zip4jUtil.detectCharSet(fileName).equals(InternalZipConstants.CHARSET_UTF8)) {
+			generalPurposeFlag[1] |= 8;
+		} else {
+			generalPurposeFlag[1] &= ~8;
+		}
+		fileHeader.setGeneralPurposeFlag(generalPurposeFlag);
+		fileHeader.setOffsetLocalHeader(offset);
+		fileHeader.setZip64ExtendedInfo(null);
+		
+		ZipParameters parameters = null;
+		int sourceStrength = -1;
+		int sourceSaltLength = 0;
+		int saltLength = 0;
+		if (isAES) {
+			try {
+				parameters = (ZipParameters)zipParameters.clone();
+			} catch (CloneNotSupportedException e) {
+				throw new RuntimeException(e);
+			}
+			// the extra data record has to match the strength of the keys actually used
+			if (parameters.getKeyMaterialPool() != null) {
+				parameters.setAesKeyStrength(parameters.getKeyMaterialPool().getKeyStrength());
+			}
+			if (parameters.getAesKeyStrength() == -1) {
+				parameters.setAesKeyStrength(fileHeader.getAesExtraDataRecord().getAesStrength());
+			}
+			
+			sourceStrength = fileHeader.getAesExtraDataRecord().getAesStrength();
+			sourceSaltLength = AESEncrypter.getKeyLength(sourceStrength) / 2;
+			saltLength = AESEncrypter.getKeyLength(parameters.getAesKeyStrength()) / 2;
+			
+			AESExtraDataRecord aesExtraDataRecord = new AESExtraDataRecord();
+			aesExtraDataRecord.setSignature(InternalZipConstants.AESSIG);
+			aesExtraDataRecord.setDataSize(7);
+			aesExtraDataRecord.setVendorID("AE");
+			// AE-1 or AE-2 as before, the stored CRC stays valid as the plain data does not change
+			aesExtraDataRecord.setVersionNumber(fileHeader.getAesExtraDataRecord().getVersionNumber());
+			aesExtraDataRecord.setAesStrength(parameters.getAesKeyStrength());
+			aesExtraDataRecord.setCompressionMethod(fileHeader.getAesExtraDataRecord().getCompressionMethod());
+			fileHeader.setAesExtraDataRecord(aesExtraDataRecord);
+			fileHeader.setEncryptionMethod(Zip4jConstants.ENC_METHOD_AES);
+		}
+		
+		long sourceCompressedSize = fileHeader.getCompressedSize();
+		fileHeader.setCompressedSize(sourceCompressedSize - sourceSaltLength + saltLength);
+		
+		LocalFileHeader localFileHeader = createLocalFileHeader(fileHeader);
+		long bytesWritten = headerWriter.writeLocalFileHeader(zipModel, localFileHeader, outputStream);
+		
+		raf.seek(sourceLocalHeader.getOffsetStartOfData());
+		if (isAES) {
+			reEncryptData(raf, outputStream, sourceCompressedSize, sourceStrength,
+					fileHeader, oldPassword, parameters);
+		} else {
+			copyData(raf, outputStream, sourceCompressedSize);
+		}
+		bytesWritten += fileHeader.getCompressedSize();
+		
+		if (localFileHeader.isDataDescriptorExists()) {
+			bytesWritten += HeaderWriter.writeExtendedLocalHeader(localFileHeader, outputStream);
+		}
+		
+		zipModel.getCentralDirectory().getFileHeaders().add(fileHeader);
+		return bytesWritten;
+	}
+	
+	private static void reEncryptData(RandomAccessFile raf, OutputStream outputStream, long sourceCompressedSize,
+			int sourceStrength, FileHeader fileHeader, char[] oldPassword, ZipParameters parameters) throws IOException {
+		int sourceSaltLength = AESEncrypter.getKeyLength(sourceStrength) / 2;
+		long dataLength = sourceCompressedSize - sourceSaltLength - 2 - InternalZipConstants.AES_AUTH_LENGTH;
+		if (dataLength < 0) {
+			throw new RuntimeException("invalid compressed size for AES entry: " + fileHeader.getFileName());
+		}
+		
+		byte[] sourceSalt = new byte[sourceSaltLength];
+		byte[] sourcePasswordVerifier = new byte[2];
+		raf.readFully(sourceSalt);
+		raf.readFully(sourcePasswordVerifier);
+		
+		AESDecrypter decrypter = new AESDecrypter(oldPassword, sourceStrength, sourceSalt, sourcePasswordVerifier,
+				parameters.getKeystreamBackend(), parameters.getKeyDerivationExecutor());
+		AESEncrypter encrypter = null;
+		byte[] buff = null;
+		try {
+			encrypter = ZipOutputStream.createAESEncrypter(parameters);
+			outputStream.write(encrypter.getSaltBytes());
+			outputStream.write(encrypter.getDerivedPasswordVerifier());
+			
+			buff = new byte[Math.max(InternalZipConstants.BUFF_SIZE, parameters.getParallelEncryptionThreshold())];
+			while (dataLength > 0) {
+				int len = (int)Math.min(buff.length, dataLength);
+				raf.readFully(buff, 0, len);
+				decrypter.decryptData(buff, 0, len);
+				encrypter.encryptAndAuthenticate(buff, 0, len);
+				outputStream.write(buff, 0, len);
+				dataLength -= len;
+			}
+			
+			byte[] storedMac = new byte[InternalZipConstants.AES_AUTH_LENGTH];
+			raf.readFully(storedMac);
+			if (!Arrays.equals(storedMac, decrypter.getCalculatedAuthenticationBytes())) {
+				throw new RuntimeException("invalid MAC for " + fileHeader.getFileName() + ", the entry is corrupt");
+			}
+			outputStream.write(encrypter.getFinalMac());
+		} finally {
+			decrypter.close();
+			if (encrypter != null) {
+				encrypter.close();
+			}
+			if (buff != null) {
+				Arrays.fill(buff, (byte)0);
+			}
+		}
+	}
+	
+	private static void copyData(RandomAccessFile raf, OutputStream outputStream, long length) throws IOException {
+		byte[] buff = new byte[InternalZipConstants.BUFF_SIZE];
+		while (length > 0) {
+			int len = (int)Math.min(buff.length, length);
+			raf.readFully(buff, 0, len);
+			outputStream.write(buff, 0, len);
+			length -= len;
+		}
+	}
+	
+	private static LocalFileHeader createLocalFileHeader(FileHeader fileHeader) {
+		LocalFileHeader localFileHeader = new LocalFileHeader();
+		localFileHeader.setSignature((int)InternalZipConstants.LOCSIG);
+		localFileHeader.setVersionNeededToExtract(fileHeader.getVersionNeededToExtract());
+		localFileHeader.setCompressionMethod(fileHeader.getCompressionMethod());
+		localFileHeader.setLastModFileTime(fileHeader.getLastModFileTime());
+		localFileHeader.setUncompressedSize(fileHeader.getUncompressedSize());
+		localFileHeader.setFileNameLength(fileHeader.getFileNameLength());
+		localFileHeader.setFileName(fileHeader.getFileName());
+		localFileHeader.setEncrypted(fileHeader.isEncrypted());
+		localFileHeader.setEncryptionMethod(fileHeader.getEncryptionMethod());
+		localFileHeader.setAesExtraDataRecord(fileHeader.getAesExtraDataRecord());
+		localFileHeader.setCrc32(fileHeader.getCrc32());
+		localFileHeader.setCompressedSize(fileHeader.getCompressedSize());
+		localFileHeader.setGeneralPurposeFlag(fileHeader.getGeneralPurposeFlag().clone());
+		localFileHeader.setDataDescriptorExists(fileHeader.isDataDescriptorExists());
+		return localFileHeader;
+	}
+	
+}
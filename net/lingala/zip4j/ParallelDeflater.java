@@ -0,0 +1,186 @@
+/*
+* Copyright 2010 Srikanth Reddy Lingala  
+* 
+* Licensed under the Apache License, Version 2.0 (the "License"); 
+* you may not use this file except in compliance with the License. 
+* You may obtain a copy of the License at 
+* 
+* http://www.apache.org/licenses/LICENSE-2.0 
+* 
+* Unless required by applicable law or agreed to in writing, 
+* software distributed under the License is distributed on an "AS IS" BASIS, 
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+* See the License for the specific language governing permissions and 
+* limitations under the License. 
+*/
+
+package net.lingala.zip4j;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.zip.Deflater;
+
+import net.lingala.zip4j.util.DeflaterPool;
+import net.lingala.zip4j.util.InternalZipConstants;
+
+/**
+ * Deflates the data of one entry on a ForkJoinPool, in the manner of pigz.
+ * The input is cut into blocks of PARALLEL_DEFLATE_BLOCK_SIZE, each compressed
+ * to raw deflate on its own with the last 32 KB of the block before it as
+ * preset dictionary, and closed with a SYNC_FLUSH so it ends on a byte
+ * boundary. Written one after the other, the blocks form a single deflate
+ * stream, which the last one ends with BFINAL set.
+ * 
+ * At most blocksInFlight blocks are compressing or waiting to be written, the
+ * caller blocks on the oldest one beyond that. Compressed blocks are written
+ * in order on the calling thread.
+ */
+class ParallelDeflater {
+	
+	private final ZipOutputStream zipOutputStream;
+	private final int level;
+	private final int blocksInFlight;
+	private final ForkJoinPool pool;
+	
+	private final ArrayDeque<ForkJoinTask<byte[]>> pending;
+	// input blocks of written tasks, for reuse
+	private final ArrayDeque<byte[]> freeBlocks;
+	private final ArrayDeque<byte[]> pendingBlocks;
+	
+	private byte[] block;
+	private int blockLength;
+	private byte[] dictionary;
+	
+	/**
+	 * @param zipOutputStream stream the compressed blocks are written to, through _write
+	 * @param level deflate compression level
+	 * @param blocksInFlight maximum number of blocks compressed at the same time
+	 * @param pool pool to compress on
+	 */
+	ParallelDeflater(ZipOutputStream zipOutputStream, int level, int blocksInFlight, ForkJoinPool pool) {
+		this.zipOutputStream = zipOutputStream;
+		this.level = level;
+		this.blocksInFlight = Math.max(1, blocksInFlight);
+		this.pool = pool != null ? pool : ForkJoinPool.commonPool();
+		this.pending = new ArrayDeque<ForkJoinTask<byte[]>>();
+		this.freeBlocks = new ArrayDeque<byte[]>();
+		this.pendingBlocks = new ArrayDeque<byte[]>();
+		this.block = new byte[InternalZipConstants.PARALLEL_DEFLATE_BLOCK_SIZE];
+	}
+	
+	void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			int n = Math.min(len, block.length - blockLength);
+			System.arraycopy(b, off, block, blockLength, n);
+			blockLength += n;
+			off += n;
+			len -= n;
+			if (blockLength == block.length) {
+				submit(false);
+			}
+		}
+	}
+	
+	void write(ByteBuffer src) throws IOException {
+		while (src.hasRemaining()) {
+			int n = Math.min(src.remaining(), block.length - blockLength);
+			src.get(block, blockLength, n);
+			blockLength += n;
+			if (blockLength == block.length) {
+				submit(false);
+			}
+		}
+	}
+	
+	/**
+	 * Compresses what is left as the final block and writes out all the blocks
+	 */
+	void finish() throws IOException {
+		submit(true);
+		while (!pending.isEmpty()) {
+			writeOldest();
+		}
+	}
+	
+	/**
+	 * Cancels the blocks not written yet
+	 */
+	void close() {
+		for (ForkJoinTask<byte[]> task : pending) {
+			task.cancel(false);
+		}
+		pending.clear();
+		pendingBlocks.clear();
+		freeBlocks.clear();
+	}
+	
+	private void submit(final boolean last) throws IOException {
+		while (pending.size() >= blocksInFlight) {
+			writeOldest();
+		}
+		
+		final byte[] input = block;
+		final int inputLength = blockLength;
+		final byte[] presetDictionary = dictionary;
+		pending.add(pool.submit(new Callable<byte[]>() {
+			public byte[] call() {
+				return deflateBlock(input, inputLength, presetDictionary, last);
+			}
+		}));
+		pendingBlocks.add(input);
+		
+		if (!last) {
+			dictionary = Arrays.copyOfRange(input, inputLength - InternalZipConstants.DEFLATE_DICTIONARY_SIZE, inputLength);
+			block = freeBlocks.isEmpty() ? new byte[InternalZipConstants.PARALLEL_DEFLATE_BLOCK_SIZE] : freeBlocks.poll();
+			blockLength = 0;
+		}
+	}
+	
+	private void writeOldest() throws IOException {
+		byte[] compressed = pending.poll().join();
+		freeBlocks.add(pendingBlocks.poll());
+		zipOutputStream._write(compressed, 0, compressed.length);
+	}
+	
+	private byte[] deflateBlock(byte[] input, int inputLength, byte[] presetDictionary, boolean last) {
+		Deflater deflater = DeflaterPool.getDefault().borrow(level, Deflater.DEFAULT_STRATEGY, true);
+		try {
+			if (presetDictionary != null) {
+				deflater.setDictionary(presetDictionary);
+			}
+			deflater.setInput(input, 0, inputLength);
+			
+			// sized for input that hardly compresses
+			byte[] out = new byte[inputLength + inputLength / 100 + 64];
+			int outLength = 0;
+			if (last) {
+				deflater.finish();
+				while (!deflater.finished()) {
+					if (outLength == out.length) {
+						out = Arrays.copyOf(out, out.length * 2);
+					}
+					outLength += deflater.deflate(out, outLength, out.length - outLength);
+				}
+			} else {
+				// a sync flush is complete once it leaves room in the output
+				while (true) {
+					int n = deflater.deflate(out, outLength, out.length - outLength, Deflater.SYNC_FLUSH);
+					outLength += n;
+					if (outLength < out.length) {
+						break;
+					}
+					out = Arrays.copyOf(out, out.length * 2);
+				}
+			}
+			return outLength == out.length ? out : Arrays.copyOf(out, outLength);
+		} finally {
+			DeflaterPool.getDefault().release(deflater, level, Deflater.DEFAULT_STRATEGY, true);
+		}
+	}
+	
+}
@@ -18,11 +18,15 @@ package net.lingala.zip4j;
 
 import java.io.IOException;
 import java.io.OutputStream;
+import java.lang.ref.Cleaner;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.zip.CRC32;
 import java.util.zip.Deflater;
 import net.lingala.zip4j.util.HeaderWriter;
 import net.lingala.zip4j.crypto.AESEncrypter;
+import net.lingala.zip4j.crypto.AESKeyMaterial;
 import net.lingala.zip4j.crypto.IEncrypter;
 import net.lingala.zip4j.model.AESExtraDataRecord;
 import net.lingala.zip4j.model.CentralDirectory;
@@ -31,6 +35,7 @@ import net.lingala.zip4j.model.FileHeader;
 import net.lingala.zip4j.model.LocalFileHeader;
 import net.lingala.zip4j.model.ZipModel;
 import net.lingala.zip4j.ZipParameters;
+import net.lingala.zip4j.util.DeflaterPool;
 import net.lingala.zip4j.util.InternalZipConstants;
 import net.lingala.zip4j.util.Raw;
 import net.lingala.zip4j.util.Zip4jConstants;
@@ -47,12 +52,17 @@ public class ZipOutputStream extends OutputStream {
 	private long totalBytesWritten;
 	private CRC32 crc;
 	private long bytesWrittenForThisFile;
-	private byte[] pendingBuffer;
-	private int pendingBufferLength;
 	private long totalBytesRead;
 	private byte[] buff;
 	private Deflater deflater;
+	private Cleaner.Cleanable deflaterCleanable;
+	private ParallelDeflater parallelDeflater;
+	private byte[] inputBuffer;
+	private int inputBufferLength;
+	private byte[] sample;
+	private int sampleLength;
 	private boolean firstBytesRead;
+	private AESKeyMaterial keyMaterial;
 	public long out_length;
 
 	public ZipOutputStream(OutputStream outputStream, ZipParameters zipParameters) {
@@ -60,19 +70,87 @@ public class ZipOutputStream extends OutputStream {
 	}
 
 	public ZipOutputStream(OutputStream out, ZipModel model, ZipParameters params) {
+		this(out, model, params, null);
+	}
+	
+	private ZipOutputStream(OutputStream out, ZipModel model, ZipParameters params, AESKeyMaterial keyMaterial) {
 		this.outputStream = out;
+		this.keyMaterial = keyMaterial;
 		initZipModel(model);
 		crc = new CRC32();
 		this.totalBytesWritten = 0;
 		this.bytesWrittenForThisFile = 0;
-		this.pendingBuffer = new byte[InternalZipConstants.AES_BLOCK_SIZE];
-		this.pendingBufferLength = 0;
 		this.totalBytesRead = 0;
 
-		deflater = new Deflater();
 		buff = new byte[InternalZipConstants.BUFF_SIZE];
 		firstBytesRead = false;
 		putNextEntry(params);
+		if (this.zipParameters.getInputBufferSize() > 0) {
+			inputBuffer = new byte[this.zipParameters.getInputBufferSize()];
+		}
+	}
+	
+	/**
+	 * Opens one stream per output stream, deriving the AES keys of all the
+	 * encrypted ones together. Meant for writing many small encrypted zip files
+	 * in a burst, where key derivation dominates: see
+	 * AESEncrypter.deriveKeyMaterial(char[][], int[]). Parameters with a key
+	 * material pool take their keys from the pool as usual.
+	 * @param outputStreams
+	 * @param zipParameters parameters for each output stream
+	 * @return the streams, in the order of the output streams
+	 */
+	public static ZipOutputStream[] createBatch(OutputStream[] outputStreams, ZipParameters[] zipParameters) {
+		if (outputStreams == null || zipParameters == null || outputStreams.length != zipParameters.length) {
+			throw new RuntimeException("one set of zip parameters is needed per output stream");
+		}
+		
+		List<Integer> derived = new ArrayList<Integer>();
+		for (int i = 0; i < zipParameters.length; i++) {
+			if (zipParameters[i] == null) {
+				throw new RuntimeException("zip parameters are null for output stream " + i);
+			}
+			if (zipParameters[i].isEncryptFiles() && zipParameters[i].getKeyMaterialPool() == null) {
+				derived.add(Integer.valueOf(i));
+			}
+		}
+		
+		char[][] passwords = new char[derived.size()][];
+		int[] keyStrengths = new int[derived.size()];
+		for (int j = 0; j < derived.size(); j++) {
+			ZipParameters parameters = zipParameters[derived.get(j).intValue()];
+			passwords[j] = parameters.getPassword();
+			keyStrengths[j] = parameters.getAesKeyStrength() == -1 ?
+					Zip4jConstants.AES_STRENGTH_256 : parameters.getAesKeyStrength();
+		}
+		AESKeyMaterial[] keyMaterials = AESEncrypter.deriveKeyMaterial(passwords, keyStrengths);
+		
+		AESKeyMaterial[] keyMaterialPerStream = new AESKeyMaterial[outputStreams.length];
+		for (int j = 0; j < derived.size(); j++) {
+			keyMaterialPerStream[derived.get(j).intValue()] = keyMaterials[j];
+		}
+		
+		ZipOutputStream[] streams = new ZipOutputStream[outputStreams.length];
+		int i = 0;
+		try {
+			for (; i < outputStreams.length; i++) {
+				streams[i] = new ZipOutputStream(outputStreams[i], null, zipParameters[i], keyMaterialPerStream[i]);
+			}
+		} finally {
+			// key material of streams that could not be opened is never used
+			for (int j = i; j < keyMaterialPerStream.length; j++) {
+				if (keyMaterialPerStream[j] != null) {
+					keyMaterialPerStream[j].clear();
+				}
+			}
+			if (i < outputStreams.length) {
+				// the caller never gets the streams opened so far, so it cannot close them
+				for (int j = 0; j < i; j++) {
+					streams[j].abort();
+				}
+			}
+		}
+		return streams;
 	}
 	
 	private void putNextEntry(ZipParameters zipParameters) {
@@ -83,6 +161,47 @@ public class ZipOutputStream extends OutputStream {
 				throw new RuntimeException("file name is empty for external stream");
 			}
 			
+			if (this.zipParameters.isEncryptFiles()) {
+				// the extra data record has to match the strength of the keys actually used
+				if (this.zipParameters.getKeyMaterialPool() != null) {
+					this.zipParameters.setAesKeyStrength(this.zipParameters.getKeyMaterialPool().getKeyStrength());
+				}
+				if (this.zipParameters.getAesKeyStrength() == -1) {
+					this.zipParameters.setAesKeyStrength(Zip4jConstants.AES_STRENGTH_256);
+				}
+				if (this.zipParameters.getAesVersion() != Zip4jConstants.AES_VERSION_AE1 &&
+						this.zipParameters.getAesVersion() != Zip4jConstants.AES_VERSION_AE2) {
+					throw new RuntimeException("invalid AES version: " + this.zipParameters.getAesVersion());
+				}
+			}
+			
+			crc.reset();
+		} catch (CloneNotSupportedException e) {
+			throw new RuntimeException(e);
+		}
+		
+		if (this.zipParameters.getCompressionMethod() == Zip4jConstants.COMP_DEFLATE) {
+			if ((this.zipParameters.getCompressionLevel() < 0 || this.zipParameters
+					.getCompressionLevel() > 9)
+					&& this.zipParameters.getCompressionLevel() != -1) {
+				throw new RuntimeException("invalid compression level for deflater, range is [0,9].");
+			}
+			if (this.zipParameters.getAdaptiveCompressionThreshold() > 0) {
+				// headers wait until the sample tells whether deflating is worth it
+				sample = new byte[InternalZipConstants.ADAPTIVE_SAMPLE_SIZE];
+				sampleLength = 0;
+				return;
+			}
+		}
+		startEntry();
+	}
+	
+	/**
+	 * Writes the local header and salt, and sets up the encrypter and deflater
+	 * for the compression method of the parameters
+	 */
+	private void startEntry() {
+		try {
 			createFileHeader();
 			createLocalFileHeader();
 			
@@ -117,31 +236,149 @@ public class ZipOutputStream extends OutputStream {
 					bytesWrittenForThisFile += saltBytes.length + passwordVerifier.length;
 				}
 			} 
-			
-			crc.reset();
-		} catch (CloneNotSupportedException e) {
-			throw new RuntimeException(e);
 		} catch (Exception e) {
+			abort();
 			throw new RuntimeException(e);
 		}
 		if (zipParameters.getCompressionMethod() == Zip4jConstants.COMP_DEFLATE) {
-			deflater.reset();
-			if ((zipParameters.getCompressionLevel() < 0 || zipParameters
-					.getCompressionLevel() > 9)
-					&& zipParameters.getCompressionLevel() != -1) {
-				throw new RuntimeException("invalid compression level for deflater, range is [0,9].");
+			if (zipParameters.getParallelDeflateBlocks() > 0) {
+				parallelDeflater = new ParallelDeflater(this, zipParameters.getCompressionLevel(),
+						zipParameters.getParallelDeflateBlocks(), null);
+			} else {
+				// given back when the entry is closed, or by the cleaner if the stream is dropped
+				deflater = DeflaterPool.getDefault().borrow(zipParameters.getCompressionLevel(), Deflater.DEFAULT_STRATEGY, false);
+				deflaterCleanable = DeflaterPool.getDefault().register(this, deflater,
+						zipParameters.getCompressionLevel(), Deflater.DEFAULT_STRATEGY, false);
+			}
+		}
+	}
+	
+	/**
+	 * Settles the compression method on the sampled input, starts the entry
+	 * and writes the sample
+	 */
+	private void chooseCompressionMethod() throws IOException {
+		byte[] sampled = sample;
+		int sampledLength = sampleLength;
+		sample = null;
+		
+		if (!isWorthDeflating(sampled, sampledLength, zipParameters.getAdaptiveCompressionThreshold())) {
+			zipParameters.setCompressionMethod(Zip4jConstants.COMP_STORE);
+		}
+		startEntry();
+		if (sampledLength > 0) {
+			writeInput(sampled, 0, sampledLength);
+		}
+	}
+	
+	/**
+	 * Estimates whether deflate saves at least thresholdPercent of the data.
+	 * The order 0 entropy settles it when the byte distribution alone is
+	 * skewed enough, as Huffman coding gets that much at least. Otherwise a
+	 * prefix is deflated at the fastest level, which also catches repetition.
+	 */
+	private static boolean isWorthDeflating(byte[] b, int len, int thresholdPercent) {
+		if (len == 0) {
+			return false;
+		}
+		
+		// a histogram of few bytes looks skewed whatever the data
+		if (len >= 16 * 256) {
+			int[] counts = new int[256];
+			for (int i = 0; i < len; i++) {
+				counts[b[i] & 0xff]++;
+			}
+			double entropy = 0;
+			for (int i = 0; i < 256; i++) {
+				if (counts[i] > 0) {
+					double p = (double)counts[i] / len;
+					entropy -= p * Math.log(p);
+				}
+			}
+			// bits per byte
+			entropy /= Math.log(2);
+			if ((8 - entropy) / 8 * 100 >= thresholdPercent) {
+				return true;
 			}
-			deflater.setLevel(zipParameters.getCompressionLevel());
+		}
+		
+		int trialLength = Math.min(len, InternalZipConstants.ADAPTIVE_TRIAL_SIZE);
+		Deflater trial = DeflaterPool.getDefault().borrow(Zip4jConstants.DEFLATE_LEVEL_FASTEST, Deflater.DEFAULT_STRATEGY, true);
+		try {
+			trial.setInput(b, 0, trialLength);
+			trial.finish();
+			byte[] out = new byte[InternalZipConstants.BUFF_SIZE];
+			long compressedLength = 0;
+			while (!trial.finished()) {
+				compressedLength += trial.deflate(out, 0, out.length);
+			}
+			return (trialLength - compressedLength) * 100 >= (long)thresholdPercent * trialLength;
+		} finally {
+			DeflaterPool.getDefault().release(trial, Zip4jConstants.DEFLATE_LEVEL_FASTEST, Deflater.DEFAULT_STRATEGY, true);
 		}
 	}
 	
+	/**
+	 * @return compression method of the entry. With adaptive compression this
+	 * is the configured method until enough input was written to choose.
+	 */
+	public int getCompressionMethod() {
+		return zipParameters.getCompressionMethod();
+	}
+	
 	private void initEncrypter() {
 		if (!zipParameters.isEncryptFiles()) {
 			encrypter = null;
 			return;
 		}
 		
-		encrypter = new AESEncrypter(zipParameters.getPassword(), zipParameters.getAesKeyStrength());
+		AESEncrypter aesEncrypter = createAESEncrypter(zipParameters, keyMaterial);
+		// handed over to the encrypter, which wipes it
+		keyMaterial = null;
+		if (zipParameters.getKeystreamPrefetchSize() <= 0 && zipParameters.getParallelEncryptionThreshold() > 0) {
+			// compressed output is handed over one buffer at a time, it has to be able to reach the threshold
+			if (buff.length < zipParameters.getParallelEncryptionThreshold()) {
+				buff = new byte[zipParameters.getParallelEncryptionThreshold()];
+			}
+		}
+		encrypter = aesEncrypter;
+	}
+	
+	/**
+	 * Creates an AES encrypter for one entry, with its key material and
+	 * throughput options taken from the parameters
+	 * @param zipParameters
+	 * @return AES encrypter
+	 */
+	static AESEncrypter createAESEncrypter(ZipParameters zipParameters) {
+		return createAESEncrypter(zipParameters, null);
+	}
+	
+	/**
+	 * @param zipParameters
+	 * @param keyMaterial key material derived beforehand, null to take it from the
+	 * pool or derive it from the password of the parameters
+	 * @return AES encrypter
+	 */
+	private static AESEncrypter createAESEncrypter(ZipParameters zipParameters, AESKeyMaterial keyMaterial) {
+		AESEncrypter aesEncrypter;
+		if (keyMaterial != null) {
+			aesEncrypter = new AESEncrypter(keyMaterial, zipParameters.getKeystreamBackend());
+		} else if (zipParameters.getKeyMaterialPool() != null) {
+			aesEncrypter = new AESEncrypter(zipParameters.getKeyMaterialPool().take(), zipParameters.getKeystreamBackend());
+		} else {
+			aesEncrypter = new AESEncrypter(zipParameters.getPassword(), zipParameters.getAesKeyStrength(),
+					zipParameters.getKeystreamBackend(), zipParameters.getKeyDerivationExecutor());
+		}
+		if (zipParameters.getKeystreamPrefetchSize() > 0) {
+			aesEncrypter.setKeystreamPrefetch(zipParameters.getKeystreamPrefetchSize());
+		} else if (zipParameters.getParallelEncryptionThreshold() > 0) {
+			aesEncrypter.setParallelEncryption(zipParameters.getParallelEncryptionThreshold(), null);
+		}
+		if (zipParameters.getMacPipelineSize() > 0) {
+			aesEncrypter.setMacPipeline(zipParameters.getMacPipelineSize());
+		}
+		return aesEncrypter;
 	}
 	
 	private void initZipModel(ZipModel zipModel) {
@@ -164,9 +401,17 @@ public class ZipOutputStream extends OutputStream {
 	}
 	
 	public void write(int bval) throws IOException {
+		if (inputBuffer != null) {
+			// bulk writes may have left the buffer full
+			if (inputBufferLength == inputBuffer.length) {
+				flushInputBuffer();
+			}
+			inputBuffer[inputBufferLength++] = (byte) bval;
+			return;
+		}
 	    byte[] b = new byte[1];
 	    b[0] = (byte) bval;
-	    write(b, 0, 1);
+	    writeInput(b, 0, 1);
 	}
 	
 	public void write(byte[] b) throws IOException {
@@ -175,11 +420,99 @@ public class ZipOutputStream extends OutputStream {
 		write(b, 0, b.length);
 	}
 
+	/**
+	 * Small writes are gathered in the input buffer, so that CRC and deflater
+	 * are called once per buffer rather than once per write. Writes at least
+	 * as large as the buffer go straight through.
+	 */
 	public void write(byte[] b, int off, int len) throws IOException {
-		crc.update(b, off, len);
+		if (inputBuffer == null) {
+			writeInput(b, off, len);
+			return;
+		}
+		if (len >= inputBuffer.length) {
+			flushInputBuffer();
+			writeInput(b, off, len);
+			return;
+		}
+		if (len > inputBuffer.length - inputBufferLength) {
+			flushInputBuffer();
+		}
+		System.arraycopy(b, off, inputBuffer, inputBufferLength, len);
+		inputBufferLength += len;
+	}
+	
+	/**
+	 * Writes the remaining bytes of the buffer, leaving its position at its
+	 * limit. The bytes of a direct buffer go to the CRC and the deflater
+	 * without being copied to the heap first. Stored and parallel deflated
+	 * entries, and writes smaller than the input buffer, still copy them.
+	 * @param src
+	 * @throws IOException
+	 */
+	public void write(ByteBuffer src) throws IOException {
+		if (src.hasArray()) {
+			int len = src.remaining();
+			write(src.array(), src.arrayOffset() + src.position(), len);
+			src.position(src.position() + len);
+			return;
+		}
+		if (inputBuffer != null && src.remaining() < inputBuffer.length) {
+			if (src.remaining() > inputBuffer.length - inputBufferLength) {
+				flushInputBuffer();
+			}
+			int len = src.remaining();
+			src.get(inputBuffer, inputBufferLength, len);
+			inputBufferLength += len;
+			return;
+		}
+		flushInputBuffer();
+		writeInput(src);
+	}
+	
+	private void flushInputBuffer() throws IOException {
+		if (inputBufferLength > 0) {
+			int len = inputBufferLength;
+			inputBufferLength = 0;
+			writeInput(inputBuffer, 0, len);
+		}
+	}
+	
+	private void writeInput(byte[] b, int off, int len) throws IOException {
+		if (sample != null) {
+			int n = Math.min(len, sample.length - sampleLength);
+			System.arraycopy(b, off, sample, sampleLength, n);
+			sampleLength += n;
+			off += n;
+			len -= n;
+			if (sampleLength < sample.length) {
+				return;
+			}
+			chooseCompressionMethod();
+			if (len == 0) {
+				return;
+			}
+		}
+		
+		if (isCrcStored()) {
+			crc.update(b, off, len);
+		}
 		updateTotalBytesRead(len);
 		if (zipParameters.getCompressionMethod() != Zip4jConstants.COMP_DEFLATE) {
-			_write(b, off, len);
+			if (encrypter != null) {
+				// encryption happens in place, keep the caller's buffer untouched
+				while (len > 0) {
+					int chunk = Math.min(len, buff.length);
+					System.arraycopy(b, off, buff, 0, chunk);
+					_write(buff, 0, chunk);
+					off += chunk;
+					len -= chunk;
+				}
+			} else {
+				_write(b, off, len);
+			}
+		} else if (parallelDeflater != null) {
+			parallelDeflater.write(b, off, len);
 		} else {
 			deflater.setInput(b, off, len);
 			while (!deflater.needsInput()) {
@@ -188,38 +521,54 @@ public class ZipOutputStream extends OutputStream {
 		}
 	}
 
+	private void writeInput(ByteBuffer src) throws IOException {
+		if (sample != null) {
+			int n = Math.min(src.remaining(), sample.length - sampleLength);
+			src.get(sample, sampleLength, n);
+			sampleLength += n;
+			if (sampleLength < sample.length) {
+				return;
+			}
+			chooseCompressionMethod();
+		}
+		if (!src.hasRemaining()) {
+			return;
+		}
+		
+		int len = src.remaining();
+		if (isCrcStored()) {
+			int position = src.position();
+			crc.update(src);
+			src.position(position);
+		}
+		updateTotalBytesRead(len);
+		if (zipParameters.getCompressionMethod() != Zip4jConstants.COMP_DEFLATE) {
+			// the output stream only takes arrays
+			while (src.hasRemaining()) {
+				int chunk = Math.min(src.remaining(), buff.length);
+				src.get(buff, 0, chunk);
+				_write(buff, 0, chunk);
+			}
+		} else if (parallelDeflater != null) {
+			parallelDeflater.write(src);
+		} else {
+			// the deflater advances the position of the buffer as it consumes it
+			deflater.setInput(src);
+			while (!deflater.needsInput()) {
+				deflate();
+			}
+		}
+	}
+
 	public void _write(byte [] b, int off, int len) throws IOException {
 			if (len == 0) return;
 			
-			if (zipParameters.isEncryptFiles()) {
-				if (pendingBufferLength != 0) {
-					if (len >= (InternalZipConstants.AES_BLOCK_SIZE - pendingBufferLength)) {
-						System.arraycopy(b, off, pendingBuffer, pendingBufferLength,
-										(InternalZipConstants.AES_BLOCK_SIZE - pendingBufferLength));
-						encryptAndWrite(pendingBuffer, 0, pendingBuffer.length);
-						off = (InternalZipConstants.AES_BLOCK_SIZE - pendingBufferLength);
-						len = len - off;
-						pendingBufferLength = 0;
-					} else {
-						System.arraycopy(b, off, pendingBuffer, pendingBufferLength,
-								len);
-						pendingBufferLength += len;
-						return;
-					}
-				}
-				if (len != 0 && len % 16 != 0) {
-					System.arraycopy(b, (len + off) - (len % 16), pendingBuffer, 0, len % 16);
-					pendingBufferLength = len % 16;
-					len = len - pendingBufferLength; 
-				}
-			}
-			if (len != 0)
-				encryptAndWrite(b, off, len);
+			encryptAndWrite(b, off, len);
 	}
 
 	private void encryptAndWrite(byte[] b, int off, int len) throws IOException {
 		if (encrypter != null) {
-			encrypter.encryptData(b, off, len);
+			((AESEncrypter)encrypter).encryptAndAuthenticate(b, off, len);
 		}
 		outputStream.write(b, off, len);
 		totalBytesWritten += len;
@@ -227,7 +576,31 @@ public class ZipOutputStream extends OutputStream {
 	}
 	
 	private void closeEntry() throws IOException {
-		if (zipParameters.getCompressionMethod() == Zip4jConstants.COMP_DEFLATE) {
+		try {
+			finishEntry();
+		} finally {
+			// when the entry failed half way, gives the deflater back to the pool and
+			// stops the keystream and mac threads of the encrypter. A finished entry
+			// has released both already.
+			abort();
+		}
+	}
+	
+	private void finishEntry() throws IOException {
+		flushInputBuffer();
+		if (sample != null) {
+			// entry shorter than the sample
+			chooseCompressionMethod();
+		}
+		
+		if (parallelDeflater != null) {
+			try {
+				parallelDeflater.finish();
+			} finally {
+				parallelDeflater.close();
+				parallelDeflater = null;
+			}
+		} else if (zipParameters.getCompressionMethod() == Zip4jConstants.COMP_DEFLATE) {
 			if (!deflater.finished()) {
 				deflater.finish();
 				while (!deflater.finished()) {
@@ -235,16 +608,14 @@ public class ZipOutputStream extends OutputStream {
 				}
 			}
 			firstBytesRead = false;
+			releaseDeflater();
 		}
 
-		if (this.pendingBufferLength != 0) {
-			encryptAndWrite(pendingBuffer, 0, pendingBufferLength);
-			pendingBufferLength = 0;
-		}
-		
 		if (this.zipParameters.isEncryptFiles()) {
 			if (encrypter instanceof AESEncrypter) {
-				outputStream.write(((AESEncrypter)encrypter).getFinalMac());
+				byte[] finalMac = ((AESEncrypter)encrypter).getFinalMac();
+				releaseEncrypter();
+				outputStream.write(finalMac);
 				bytesWrittenForThisFile += 10;
 				totalBytesWritten += 10;
 			} else {
@@ -259,7 +630,7 @@ public class ZipOutputStream extends OutputStream {
 			localFileHeader.setUncompressedSize(totalBytesRead);
 		}
 		
-		if (zipParameters.isEncryptFiles()) {
+		if (!isCrcStored()) {
 			fileHeader.setCrc32(0);
 			localFileHeader.setCrc32(0);
 		} else {
@@ -274,10 +645,37 @@ public class ZipOutputStream extends OutputStream {
 		
 		crc.reset();
 		bytesWrittenForThisFile = 0;
-		encrypter = null;
 		totalBytesRead = 0;
 	}
 	
+	/**
+	 * Gives up the entry: stops the parallel deflater and releases the deflater
+	 * and encrypter, without writing anything more to the output stream
+	 */
+	void abort() {
+		if (parallelDeflater != null) {
+			parallelDeflater.close();
+			parallelDeflater = null;
+		}
+		releaseDeflater();
+		releaseEncrypter();
+	}
+	
+	private void releaseEncrypter() {
+		if (encrypter instanceof AESEncrypter) {
+			((AESEncrypter)encrypter).close();
+		}
+		encrypter = null;
+	}
+	
+	private void releaseDeflater() {
+		if (deflaterCleanable != null) {
+			deflaterCleanable.clean();
+			deflaterCleanable = null;
+		}
+		deflater = null;
+	}
+	
 	private void finish() {
 		zipModel.getEndCentralDirRecord().setOffsetOfStartOfCentralDir(totalBytesWritten);
 		
@@ -287,8 +685,12 @@ public class ZipOutputStream extends OutputStream {
 	}
 	
 	public void close() throws IOException {
-		closeEntry();
-		finish();
+		try {
+			closeEntry();
+			finish();
+		} finally {
+			abort();
+		}
 		if (outputStream != null)
 			outputStream.close();
 	}
@@ -396,16 +798,21 @@ public class ZipOutputStream extends OutputStream {
 		aesDataRecord.setSignature(InternalZipConstants.AESSIG);
 		aesDataRecord.setDataSize(7);
 		aesDataRecord.setVendorID("AE");
-		// Always set the version number to 2 as we do not store CRC for any AES encrypted files
-		// only MAC is stored and as per the specification, if version number is 2, then MAC is read
-		// and CRC is ignored
-		aesDataRecord.setVersionNumber(2); 
-		aesDataRecord.setAesStrength(Zip4jConstants.AES_STRENGTH_256);
+		// with version 2 the CRC is stored as 0, only the MAC protects the data
+		aesDataRecord.setVersionNumber(parameters.getAesVersion());
+		aesDataRecord.setAesStrength(parameters.getAesKeyStrength());
 		aesDataRecord.setCompressionMethod(parameters.getCompressionMethod());
 		
 		return aesDataRecord;
 	}
 	
+	/**
+	 * AE-2 entries store 0 instead of the CRC, so it is not computed for them
+	 */
+	private boolean isCrcStored() {
+		return !zipParameters.isEncryptFiles() || zipParameters.getAesVersion() != Zip4jConstants.AES_VERSION_AE2;
+	}
+	
 	public void decrementCompressedFileSize(int value) {
 		if (value <= 0) return;
 		
@@ -17,6 +17,9 @@
 package net.lingala.zip4j;
 
 import java.util.TimeZone;
+import java.util.concurrent.Executor;
+
+import net.lingala.zip4j.crypto.AESKeyMaterialPool;
 
 import net.lingala.zip4j.util.InternalZipConstants;
 import net.lingala.zip4j.util.Zip4jConstants;
@@ -31,12 +34,22 @@ public class ZipParameters implements Cloneable {
 	private boolean readHiddenFiles;
 	private char[] password;
 	private int aesKeyStrength;
+	private int aesVersion;
 	private boolean includeRootFolder;
 	private String rootFolderInZip;
 	private TimeZone timeZone;
 	private int sourceFileCRC;
 	private String defaultFolderPath;
 	private String fileNameInZip;
+	private int keystreamBackend;
+	private int parallelEncryptionThreshold;
+	private int keystreamPrefetchSize;
+	private int macPipelineSize;
+	private int parallelDeflateBlocks;
+	private int adaptiveCompressionThreshold;
+	private int inputBufferSize;
+	private Executor keyDerivationExecutor;
+	private AESKeyMaterialPool keyMaterialPool;
 	
 	public ZipParameters() {
 		compressionMethod = Zip4jConstants.COMP_DEFLATE;
@@ -45,8 +58,11 @@ public class ZipParameters implements Cloneable {
 		readHiddenFiles = true;
 		encryptionMethod = Zip4jConstants.ENC_NO_ENCRYPTION;
 		aesKeyStrength = -1;
+		aesVersion = Zip4jConstants.AES_VERSION_AE2;
 		includeRootFolder = true;
 		timeZone = TimeZone.getDefault();
+		keystreamBackend = Zip4jConstants.KEYSTREAM_BACKEND_AUTO;
+		inputBufferSize = InternalZipConstants.INPUT_BUFF_SIZE;
 	}
 
 	public int getCompressionMethod() {
@@ -123,6 +139,20 @@ public class ZipParameters implements Cloneable {
 		this.aesKeyStrength = aesKeyStrength;
 	}
 
+	public int getAesVersion() {
+		return aesVersion;
+	}
+
+	/**
+	 * AES vendor version, Zip4jConstants.AES_VERSION_AE1 or AES_VERSION_AE2 (the default).
+	 * AE-1 stores the CRC of the data for tools that check it, AE-2 stores 0 and
+	 * skips computing the CRC altogether.
+	 * @param aesVersion
+	 */
+	public void setAesVersion(int aesVersion) {
+		this.aesVersion = aesVersion;
+	}
+
 	public boolean isIncludeRootFolder() {
 		return includeRootFolder;
 	}
@@ -184,4 +214,134 @@ public class ZipParameters implements Cloneable {
 		this.fileNameInZip = fileNameInZip;
 	}
 
+	public int getKeystreamBackend() {
+		return keystreamBackend;
+	}
+
+	/**
+	 * Selects the AES keystream implementation, one of Zip4jConstants.KEYSTREAM_BACKEND_*.
+	 * KEYSTREAM_BACKEND_AUTO uses the JCA cipher when available and falls back to AESEngine.
+	 * KEYSTREAM_BACKEND_BITSLICED is a pure java engine without table lookups, for when
+	 * timing must not depend on cache behaviour.
+	 * @param keystreamBackend
+	 */
+	public void setKeystreamBackend(int keystreamBackend) {
+		this.keystreamBackend = keystreamBackend;
+	}
+
+	public int getParallelEncryptionThreshold() {
+		return parallelEncryptionThreshold;
+	}
+
+	/**
+	 * Writes of at least this many bytes are AES encrypted in parallel on the
+	 * common ForkJoinPool. 0 (the default) keeps encryption on the calling thread.
+	 * @param parallelEncryptionThreshold
+	 */
+	public void setParallelEncryptionThreshold(int parallelEncryptionThreshold) {
+		this.parallelEncryptionThreshold = parallelEncryptionThreshold;
+	}
+
+	public int getKeystreamPrefetchSize() {
+		return keystreamPrefetchSize;
+	}
+
+	/**
+	 * Size in bytes of the ring buffer that a background thread keeps filled with
+	 * AES keystream ahead of the data. 0 (the default) computes keystream on demand.
+	 * Prefetching takes precedence over parallel encryption.
+	 * @param keystreamPrefetchSize
+	 */
+	public void setKeystreamPrefetchSize(int keystreamPrefetchSize) {
+		this.keystreamPrefetchSize = keystreamPrefetchSize;
+	}
+
+	public int getMacPipelineSize() {
+		return macPipelineSize;
+	}
+
+	/**
+	 * Size in bytes of the ring buffer through which ciphertext is handed to a
+	 * background thread computing the AES HMAC. 0 (the default) computes the
+	 * HMAC on the writing thread.
+	 * @param macPipelineSize
+	 */
+	public void setMacPipelineSize(int macPipelineSize) {
+		this.macPipelineSize = macPipelineSize;
+	}
+
+	public int getParallelDeflateBlocks() {
+		return parallelDeflateBlocks;
+	}
+
+	/**
+	 * Deflates the entry in blocks of 128 KB on the common ForkJoinPool, with at
+	 * most this many blocks in memory at once. 0 (the default) deflates on the
+	 * writing thread. The output is a regular deflate stream, a little larger
+	 * than a serial one as every block ends on a byte boundary.
+	 * @param parallelDeflateBlocks
+	 */
+	public void setParallelDeflateBlocks(int parallelDeflateBlocks) {
+		this.parallelDeflateBlocks = parallelDeflateBlocks;
+	}
+
+	public int getAdaptiveCompressionThreshold() {
+		return adaptiveCompressionThreshold;
+	}
+
+	/**
+	 * With COMP_DEFLATE, samples the first 64 KB of the entry and stores it
+	 * uncompressed instead when deflate is not expected to save at least this
+	 * percentage, as with already compressed content. 0 (the default) always
+	 * deflates. ZipOutputStream.getCompressionMethod tells the method chosen.
+	 * @param adaptiveCompressionThreshold
+	 */
+	public void setAdaptiveCompressionThreshold(int adaptiveCompressionThreshold) {
+		this.adaptiveCompressionThreshold = adaptiveCompressionThreshold;
+	}
+
+	public int getInputBufferSize() {
+		return inputBufferSize;
+	}
+
+	/**
+	 * Size in bytes of the buffer in which ZipOutputStream gathers small writes
+	 * before they go to the CRC and the deflater, 8 KB by default. 0 turns
+	 * buffering off and hands every write over as it comes.
+	 * @param inputBufferSize
+	 */
+	public void setInputBufferSize(int inputBufferSize) {
+		if (inputBufferSize < 0) {
+			throw new RuntimeException("invalid input buffer size: " + inputBufferSize);
+		}
+		this.inputBufferSize = inputBufferSize;
+	}
+
+	public Executor getKeyDerivationExecutor() {
+		return keyDerivationExecutor;
+	}
+
+	/**
+	 * Executor on which the blocks of the PBKDF2 key derivation are computed in
+	 * parallel. null (the default) derives them on the calling thread.
+	 * @param keyDerivationExecutor
+	 */
+	public void setKeyDerivationExecutor(Executor keyDerivationExecutor) {
+		this.keyDerivationExecutor = keyDerivationExecutor;
+	}
+
+	public AESKeyMaterialPool getKeyMaterialPool() {
+		return keyMaterialPool;
+	}
+
+	/**
+	 * Takes the AES key material from a pool of pre-derived keys instead of
+	 * deriving it when the stream is opened. The pool's password is used, the
+	 * password of these parameters is ignored.
+	 * @param keyMaterialPool
+	 */
+	public void setKeyMaterialPool(AESKeyMaterialPool keyMaterialPool) {
+		this.keyMaterialPool = keyMaterialPool;
+	}
+
 }
@@ -0,0 +1,148 @@
+/*
+* Copyright 2010 Srikanth Reddy Lingala  
+* 
+* Licensed under the Apache License, Version 2.0 (the "License"); 
+* you may not use this file except in compliance with the License. 
+* You may obtain a copy of the License at 
+* 
+* http://www.apache.org/licenses/LICENSE-2.0 
+* 
+* Unless required by applicable law or agreed to in writing, 
+* software distributed under the License is distributed on an "AS IS" BASIS, 
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+* See the License for the specific language governing permissions and 
+* limitations under the License. 
+*/
+
+package net.lingala.zip4j.crypto;
+
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+
+import net.lingala.zip4j.crypto.PBKDF2.MacBasedPRF;
+import net.lingala.zip4j.util.InternalZipConstants;
+import net.lingala.zip4j.util.Raw;
+import net.lingala.zip4j.util.Zip4jConstants;
+
+/**
+ * Decrypts the data of a WinZip AES entry. The MAC is computed over the
+ * ciphertext as it passes, to be compared with the stored one at the end.
+ */
+public class AESDecrypter implements IDecrypter {
+	
+	private IKeystreamGenerator keystreamGenerator;
+	private MacBasedPRF mac;
+	
+	private byte[] aesKey;
+	private byte[] macKey;
+	
+	private int nonce = 1;
+	
+	private byte[] keystream;
+	private int keystreamPos;
+	private int keystreamLimit;
+	
+	public AESDecrypter(char[] password, int keyStrength, byte[] saltBytes, byte[] passwordVerifier) {
+		this(password, keyStrength, saltBytes, passwordVerifier, Zip4jConstants.KEYSTREAM_BACKEND_AUTO, null);
+	}
+	
+	/**
+	 * A wrong password is rejected after deriving the PBKDF2 block holding the
+	 * verifier, before the keys are derived
+	 * @param password
+	 * @param keyStrength one of Zip4jConstants.AES_STRENGTH_*
+	 * @param saltBytes salt stored in front of the entry data
+	 * @param passwordVerifier password verifier stored after the salt
+	 * @param keystreamBackend one of Zip4jConstants.KEYSTREAM_BACKEND_*
+	 * @param keyDerivationExecutor executor to derive the PBKDF2 blocks on in parallel, null to derive them serially
+	 */
+	public AESDecrypter(char[] password, int keyStrength, byte[] saltBytes, byte[] passwordVerifier,
+			int keystreamBackend, Executor keyDerivationExecutor) {
+		this(AESEncrypter.deriveKeyMaterial(password, saltBytes, keyStrength, keyDerivationExecutor, passwordVerifier),
+				passwordVerifier, keystreamBackend);
+	}
+	
+	/**
+	 * Creates a decrypter from key material derived with the entry's salt,
+	 * which is then owned by the decrypter and wiped on close
+	 * @param keyMaterial
+	 * @param passwordVerifier password verifier stored after the salt
+	 * @param keystreamBackend one of Zip4jConstants.KEYSTREAM_BACKEND_*
+	 */
+	public AESDecrypter(AESKeyMaterial keyMaterial, byte[] passwordVerifier, int keystreamBackend) {
+		if (keyMaterial == null) {
+			throw new RuntimeException("key material is null in AES decrypter constructor");
+		}
+		
+		if (passwordVerifier == null || !Arrays.equals(passwordVerifier, keyMaterial.getDerivedPasswordVerifier())) {
+			keyMaterial.clear();
+			throw new RuntimeException("Wrong Password");
+		}
+		
+		aesKey = keyMaterial.getAesKey();
+		macKey = keyMaterial.getMacKey();
+		keystream = new byte[InternalZipConstants.BUFF_SIZE];
+		keystreamGenerator = AESEncrypter.createKeystreamGenerator(keystreamBackend, aesKey);
+		mac = new MacBasedPRF("HmacSHA1");
+		mac.init(macKey);
+	}
+	
+	public int decryptData(byte[] buff) {
+		if (buff == null) {
+			throw new RuntimeException("input bytes are null, cannot perform AES decrpytion");
+		}
+		return decryptData(buff, 0, buff.length);
+	}
+	
+	/**
+	 * Decrypts len bytes at start in place. Can be called with any length,
+	 * the keystream of a partial block is carried over to the next call.
+	 */
+	public int decryptData(byte[] buff, int start, int len) {
+		mac.update(buff, start, len);
+		
+		int end = start + len;
+		while (start < end) {
+			if (keystreamPos == keystreamLimit) {
+				int blocks = Math.min((end - start + InternalZipConstants.AES_BLOCK_SIZE - 1) / InternalZipConstants.AES_BLOCK_SIZE,
+						keystream.length / InternalZipConstants.AES_BLOCK_SIZE);
+				keystreamGenerator.generate(nonce, keystream, 0, blocks);
+				nonce += blocks;
+				keystreamPos = 0;
+				keystreamLimit = blocks * InternalZipConstants.AES_BLOCK_SIZE;
+			}
+			
+			int chunk = Math.min(end - start, keystreamLimit - keystreamPos);
+			Raw.xorBytes(buff, start, keystream, keystreamPos, chunk);
+			start += chunk;
+			keystreamPos += chunk;
+		}
+		
+		return len;
+	}
+	
+	/**
+	 * @return the first 10 bytes of the MAC over all the ciphertext seen, to
+	 * be compared with the ones stored after the entry data
+	 */
+	public byte[] getCalculatedAuthenticationBytes() {
+		byte[] rawMacBytes = mac.doFinal();
+		byte[] macBytes = new byte[InternalZipConstants.AES_AUTH_LENGTH];
+		System.arraycopy(rawMacBytes, 0, macBytes, 0, InternalZipConstants.AES_AUTH_LENGTH);
+		return macBytes;
+	}
+	
+	/**
+	 * Wipes the keys. The decrypter cannot be used afterwards.
+	 */
+	public void close() {
+		Arrays.fill(keystream, (byte)0);
+		Arrays.fill(aesKey, (byte)0);
+		Arrays.fill(macKey, (byte)0);
+		if (mac != null) {
+			mac.release();
+			mac = null;
+		}
+	}
+	
+}
@@ -16,25 +16,35 @@
 
 package net.lingala.zip4j.crypto;
 
-import java.util.Random;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 import net.lingala.zip4j.crypto.PBKDF2.MacBasedPRF;
+import net.lingala.zip4j.crypto.PBKDF2.MultiBufferPBKDF2;
 import net.lingala.zip4j.crypto.PBKDF2.PBKDF2Engine;
 import net.lingala.zip4j.crypto.PBKDF2.PBKDF2Parameters;
-import net.lingala.zip4j.crypto.AESEngine;
 import net.lingala.zip4j.util.InternalZipConstants;
 import net.lingala.zip4j.util.Raw;
+import net.lingala.zip4j.util.Zip4jConstants;
 
 public class AESEncrypter implements IEncrypter {
 	
-	private char[] password;
-	private AESEngine aesEngine;
+	private IKeystreamGenerator keystreamGenerator;
+	private int keystreamBackend;
 	private MacBasedPRF mac;
 	
 	private int KEY_LENGTH;
 	private int MAC_LENGTH;
 	private int SALT_LENGTH;
-	private final int PASSWORD_VERIFIER_LENGTH = 2;
+	private static final int PASSWORD_VERIFIER_LENGTH = 2;
+	// output length of HmacSHA1, the PRF of the WinZip key derivation
+	private static final int PBKDF2_BLOCK_LENGTH = 20;
+	
+	private static volatile ISaltSource saltSource = new SecureRandomSaltSource();
 	
 	private byte[] aesKey;
 	private byte[] macKey;
@@ -44,54 +54,273 @@ public class AESEncrypter implements IEncrypter {
 	private boolean finished;
 	
 	private int nonce = 1;
-	private int loopCount = 0;
 	
-	private byte[] iv;
-	private byte[] counterBlock;
+	private byte[] keystream;
+	private int keystreamPos;
+	private int keystreamLimit;
+	
+	private int parallelThreshold;
+	private ForkJoinPool parallelPool;
+	// per segment slot, reused across calls: a slot is only used by one task per call
+	private IKeystreamGenerator[] segmentGenerators;
+	private byte[][] segmentKeystreams;
+	
+	private KeystreamPrefetcher keystreamPrefetcher;
+	private MacPipeline macPipeline;
 	
 	public AESEncrypter(char[] password, int keyStrength) {
+		this(password, keyStrength, Zip4jConstants.KEYSTREAM_BACKEND_AUTO);
+	}
+	
+	public AESEncrypter(char[] password, int keyStrength, int keystreamBackend) {
+		this(password, keyStrength, keystreamBackend, null);
+	}
+	
+	/**
+	 * @param password
+	 * @param keyStrength
+	 * @param keystreamBackend one of Zip4jConstants.KEYSTREAM_BACKEND_*
+	 * @param keyDerivationExecutor executor to derive the PBKDF2 blocks on in parallel, null to derive them serially
+	 */
+	public AESEncrypter(char[] password, int keyStrength, int keystreamBackend, Executor keyDerivationExecutor) {
+		this(deriveKeyMaterial(password, keyStrength, keyDerivationExecutor), keystreamBackend);
+	}
+	
+	/**
+	 * Creates an encrypter from already derived key material, which is then
+	 * owned by the encrypter and wiped on close
+	 * @param keyMaterial
+	 * @param keystreamBackend one of Zip4jConstants.KEYSTREAM_BACKEND_*
+	 */
+	public AESEncrypter(AESKeyMaterial keyMaterial, int keystreamBackend) {
+		if (keyMaterial == null) {
+			throw new RuntimeException("key material is null in AES encrypter constructor");
+		}
+		
+		this.keystreamBackend = keystreamBackend;
+		this.finished = false;
+		keystream = new byte[InternalZipConstants.BUFF_SIZE];
+		init(keyMaterial);
+	}
+	
+	private void init(AESKeyMaterial keyMaterial) {
+		aesKey = keyMaterial.getAesKey();
+		macKey = keyMaterial.getMacKey();
+		derivedPasswordVerifier = keyMaterial.getDerivedPasswordVerifier();
+		saltBytes = keyMaterial.getSaltBytes();
+		
+		KEY_LENGTH = aesKey.length;
+		MAC_LENGTH = macKey.length;
+		SALT_LENGTH = saltBytes.length;
+		
+		keystreamGenerator = createKeystreamGenerator(keystreamBackend, aesKey);
+		mac = new MacBasedPRF("HmacSHA1");
+		mac.init(macKey);
+	}
+	
+	/**
+	 * Generates a fresh salt and derives the AES key, MAC key and password
+	 * verifier from it
+	 * @param password
+	 * @param keyStrength
+	 * @param keyDerivationExecutor executor to derive the PBKDF2 blocks on in parallel, null to derive them serially
+	 * @return key material for one encrypted entry
+	 */
+	public static AESKeyMaterial deriveKeyMaterial(char[] password, int keyStrength, Executor keyDerivationExecutor) {
 		if (password == null || password.length == 0) {
 			throw new RuntimeException("input password is empty or null in AES encrypter constructor");
 		}
 		
-		this.password = password;
-		this.finished = false;
-		counterBlock = new byte[InternalZipConstants.AES_BLOCK_SIZE];
-		iv = new byte[InternalZipConstants.AES_BLOCK_SIZE];
-		init();
+		byte[] saltBytes = generateSalt(getKeyLength(keyStrength) / 2);
+		return deriveKeyMaterial(password, saltBytes, keyStrength, keyDerivationExecutor);
+	}
+	
+	/**
+	 * Derives the AES key, MAC key and password verifier from a given salt,
+	 * as needed to decrypt an existing entry
+	 * @param password
+	 * @param saltBytes
+	 * @param keyStrength
+	 * @param keyDerivationExecutor executor to derive the PBKDF2 blocks on in parallel, null to derive them serially
+	 * @return key material for the entry
+	 */
+	public static AESKeyMaterial deriveKeyMaterial(char[] password, byte[] saltBytes, int keyStrength, Executor keyDerivationExecutor) {
+		return deriveKeyMaterial(password, saltBytes, keyStrength, keyDerivationExecutor, null);
 	}
 	
-	private void init() {
-		KEY_LENGTH = 32;
-		MAC_LENGTH = 32;
-		SALT_LENGTH = 16;
+	/**
+	 * Derives the key material for an existing entry, checking the password
+	 * against the stored verifier first. The PBKDF2 block holding the verifier
+	 * is derived on its own, so a wrong password is rejected after one block
+	 * instead of all of them. The block is reused for the keys otherwise.
+	 * @param password
+	 * @param saltBytes
+	 * @param keyStrength
+	 * @param keyDerivationExecutor executor to derive the PBKDF2 blocks on in parallel, null to derive them serially
+	 * @param passwordVerifier verifier stored after the salt, null to skip the check
+	 * @return key material for the entry
+	 */
+	public static AESKeyMaterial deriveKeyMaterial(char[] password, byte[] saltBytes, int keyStrength,
+			Executor keyDerivationExecutor, byte[] passwordVerifier) {
+		if (password == null || password.length == 0) {
+			throw new RuntimeException("input password is empty or null in AES encrypter constructor");
+		}
+		
+		int keyLength = getKeyLength(keyStrength);
+		int macLength = keyLength;
+		int totalLength = keyLength + macLength + PASSWORD_VERIFIER_LENGTH;
 		
-		saltBytes = generateSalt(SALT_LENGTH);
-		byte[] keyBytes = deriveKey(saltBytes, password);
+		if (saltBytes == null || saltBytes.length != keyLength / 2) {
+			throw new RuntimeException("invalid salt length for AES key strength " + keyStrength);
+		}
+		
+		byte[] keyBytes;
+		if (passwordVerifier == null) {
+			keyBytes = deriveKey(saltBytes, password, 0, totalLength, keyDerivationExecutor);
+		} else {
+			// the verifier sits at the end of the last block
+			int lastBlockOffset = ((totalLength - 1) / PBKDF2_BLOCK_LENGTH) * PBKDF2_BLOCK_LENGTH;
+			byte[] lastBlock = deriveKey(saltBytes, password, lastBlockOffset, totalLength - lastBlockOffset, null);
+			if (!isVerifierEqual(lastBlock, lastBlock.length - PASSWORD_VERIFIER_LENGTH, passwordVerifier)) {
+				Arrays.fill(lastBlock, (byte)0);
+				throw new RuntimeException("Wrong Password");
+			}
+			
+			keyBytes = new byte[totalLength];
+			byte[] firstBlocks = deriveKey(saltBytes, password, 0, lastBlockOffset, keyDerivationExecutor);
+			System.arraycopy(firstBlocks, 0, keyBytes, 0, lastBlockOffset);
+			System.arraycopy(lastBlock, 0, keyBytes, lastBlockOffset, lastBlock.length);
+			Arrays.fill(firstBlocks, (byte)0);
+			Arrays.fill(lastBlock, (byte)0);
+		}
 		
-		if (keyBytes == null || keyBytes.length != (KEY_LENGTH + MAC_LENGTH + PASSWORD_VERIFIER_LENGTH)) {
+		if (keyBytes == null || keyBytes.length != totalLength) {
 			throw new RuntimeException("invalid key generated, cannot decrypt file");
 		}
 		
-		aesKey = new byte[KEY_LENGTH];
-		macKey = new byte[MAC_LENGTH];
-		derivedPasswordVerifier = new byte[PASSWORD_VERIFIER_LENGTH];
+		return splitKeyBytes(keyBytes, saltBytes, keyLength);
+	}
+	
+	/**
+	 * Derives key material for many entries at once, each with a fresh salt.
+	 * The PBKDF2 chains of all entries of one key strength are computed
+	 * together with MultiBufferPBKDF2, which is faster than deriving them one
+	 * by one when many small encrypted files are written in a burst.
+	 * @param passwords one password per entry
+	 * @param keyStrengths one key strength per entry, Zip4jConstants.AES_STRENGTH_*
+	 * @return key material for each entry, in the order of the passwords
+	 */
+	public static AESKeyMaterial[] deriveKeyMaterial(char[][] passwords, int[] keyStrengths) {
+		if (passwords == null || keyStrengths == null || passwords.length != keyStrengths.length) {
+			throw new RuntimeException("one key strength is needed per password");
+		}
+		for (int i = 0; i < passwords.length; i++) {
+			if (passwords[i] == null || passwords[i].length == 0) {
+				throw new RuntimeException("input password is empty or null in AES encrypter constructor");
+			}
+		}
+		
+		AESKeyMaterial[] keyMaterials = new AESKeyMaterial[passwords.length];
+		for (int i = 0; i < passwords.length; i++) {
+			if (keyMaterials[i] != null) {
+				continue;
+			}
+			// all the entries with the strength of the first one not derived yet
+			int keyLength = getKeyLength(keyStrengths[i]);
+			List<Integer> indexes = new ArrayList<Integer>();
+			for (int j = i; j < passwords.length; j++) {
+				if (keyMaterials[j] == null && getKeyLength(keyStrengths[j]) == keyLength) {
+					indexes.add(Integer.valueOf(j));
+				}
+			}
+			
+			char[][] groupPasswords = new char[indexes.size()][];
+			byte[][] groupSalts = new byte[indexes.size()][];
+			for (int j = 0; j < indexes.size(); j++) {
+				groupPasswords[j] = passwords[indexes.get(j).intValue()];
+				groupSalts[j] = generateSalt(keyLength / 2);
+			}
+			byte[][] groupKeys = MultiBufferPBKDF2.deriveKeys(groupPasswords, groupSalts, 1000,
+					keyLength * 2 + PASSWORD_VERIFIER_LENGTH);
+			for (int j = 0; j < indexes.size(); j++) {
+				keyMaterials[indexes.get(j).intValue()] = splitKeyBytes(groupKeys[j], groupSalts[j], keyLength);
+			}
+		}
+		return keyMaterials;
+	}
+	
+	/**
+	 * Splits derived key bytes into AES key, MAC key and password verifier, and wipes them
+	 */
+	private static AESKeyMaterial splitKeyBytes(byte[] keyBytes, byte[] saltBytes, int keyLength) {
+		int macLength = keyLength;
+		
+		byte[] aesKey = new byte[keyLength];
+		byte[] macKey = new byte[macLength];
+		byte[] derivedPasswordVerifier = new byte[PASSWORD_VERIFIER_LENGTH];
 		
-		System.arraycopy(keyBytes, 0, aesKey, 0, KEY_LENGTH);
-		System.arraycopy(keyBytes, KEY_LENGTH, macKey, 0, MAC_LENGTH);
-		System.arraycopy(keyBytes, KEY_LENGTH + MAC_LENGTH, derivedPasswordVerifier, 0, PASSWORD_VERIFIER_LENGTH);
+		System.arraycopy(keyBytes, 0, aesKey, 0, keyLength);
+		System.arraycopy(keyBytes, keyLength, macKey, 0, macLength);
+		System.arraycopy(keyBytes, keyLength + macLength, derivedPasswordVerifier, 0, PASSWORD_VERIFIER_LENGTH);
+		Arrays.fill(keyBytes, (byte)0);
 		
-		aesEngine = new AESEngine(aesKey);
-		mac = new MacBasedPRF("HmacSHA1");
-		mac.init(macKey);
+		return new AESKeyMaterial(saltBytes, aesKey, macKey, derivedPasswordVerifier);
 	}
 	
-	private byte[] deriveKey(byte[] salt, char[] password) {
+	/**
+	 * @param keyStrength one of Zip4jConstants.AES_STRENGTH_*, -1 for the default AES-256
+	 * @return AES key length in bytes, which is also the MAC key length and twice the salt length
+	 */
+	public static int getKeyLength(int keyStrength) {
+		switch (keyStrength) {
+		case Zip4jConstants.AES_STRENGTH_128:
+			return 16;
+		case Zip4jConstants.AES_STRENGTH_192:
+			return 24;
+		case Zip4jConstants.AES_STRENGTH_256:
+		case -1:
+			return 32;
+		default:
+			throw new RuntimeException("invalid AES key strength: " + keyStrength);
+		}
+	}
+	
+	/**
+	 * Checks a password against the verifier stored with an entry. Only the
+	 * PBKDF2 block holding the verifier is derived, which is a half to a
+	 * quarter of the work of deriving the keys.
+	 * @param password
+	 * @param saltBytes salt stored in front of the entry data
+	 * @param keyStrength one of Zip4jConstants.AES_STRENGTH_*
+	 * @param passwordVerifier verifier stored after the salt
+	 * @return true if the password matches the verifier
+	 */
+	public static boolean checkPassword(char[] password, byte[] saltBytes, int keyStrength, byte[] passwordVerifier) {
+		if (password == null || password.length == 0 || passwordVerifier == null) {
+			return false;
+		}
+		int keyLength = getKeyLength(keyStrength);
+		if (saltBytes == null || saltBytes.length != keyLength / 2) {
+			throw new RuntimeException("invalid salt length for AES key strength " + keyStrength);
+		}
+		byte[] derivedPasswordVerifier = deriveKey(saltBytes, password, keyLength * 2, PASSWORD_VERIFIER_LENGTH, null);
+		return isVerifierEqual(derivedPasswordVerifier, 0, passwordVerifier);
+	}
+	
+	private static boolean isVerifierEqual(byte[] derived, int off, byte[] passwordVerifier) {
+		if (passwordVerifier.length != PASSWORD_VERIFIER_LENGTH) {
+			return false;
+		}
+		return derived[off] == passwordVerifier[0] && derived[off + 1] == passwordVerifier[1];
+	}
+	
+	private static byte[] deriveKey(byte[] salt, char[] password, int offset, int length, Executor keyDerivationExecutor) {
 		try {
 			PBKDF2Parameters p = new PBKDF2Parameters("HmacSHA1", "ISO-8859-1",
 	                    salt, 1000);
 	        PBKDF2Engine e = new PBKDF2Engine(p);
-	        byte[] derivedKey = e.deriveKey(password, KEY_LENGTH + MAC_LENGTH + PASSWORD_VERIFIER_LENGTH);
+	        e.setExecutor(keyDerivationExecutor);
+	        byte[] derivedKey = e.deriveKey(password, offset, length);
 			return derivedKey;
 		} catch (Exception e) {
 			throw new RuntimeException(e);
@@ -119,50 +348,272 @@ public class AESEncrypter implements IEncrypter {
 			this.finished = true;
 		}
 		
-		for (int j = start; j < (start + len); j += InternalZipConstants.AES_BLOCK_SIZE) {
-			loopCount = (j + InternalZipConstants.AES_BLOCK_SIZE <= (start + len)) ? 
-					InternalZipConstants.AES_BLOCK_SIZE : ((start + len) - j);
+		return encryptAndAuthenticate(buff, start, len);
+	}
+	
+	/**
+	 * Encrypts the range in place and feeds the ciphertext to the MAC. Unlike
+	 * encryptData, the range can be of any size: keystream left over from a
+	 * partial block is carried into the next call.
+	 * @param buff
+	 * @param start
+	 * @param len
+	 * @return number of bytes encrypted
+	 */
+	public int encryptAndAuthenticate(byte[] buff, int start, int len) {
+		if (parallelThreshold > 0 && len >= parallelThreshold && keystreamPrefetcher == null) {
+			return encryptAndAuthenticateParallel(buff, start, len);
+		}
+		return encryptAndAuthenticateSerial(buff, start, len);
+	}
+	
+	private int encryptAndAuthenticateSerial(byte[] buff, int start, int len) {
+		int end = start + len;
+		while (start < end) {
+			if (keystreamPos == keystreamLimit) {
+				int blocks = Math.min((end - start + InternalZipConstants.AES_BLOCK_SIZE - 1) / InternalZipConstants.AES_BLOCK_SIZE,
+						keystream.length / InternalZipConstants.AES_BLOCK_SIZE);
+				keystreamGenerator.generate(nonce, keystream, 0, blocks);
+				nonce += blocks;
+				keystreamPos = 0;
+				keystreamLimit = blocks * InternalZipConstants.AES_BLOCK_SIZE;
+			}
 			
-			Raw.prepareBuffAESIVBytes(iv, nonce, InternalZipConstants.AES_BLOCK_SIZE);
-			aesEngine.processBlock(iv, counterBlock);
+			int chunk = Math.min(end - start, keystreamLimit - keystreamPos);
+			Raw.xorBytes(buff, start, keystream, keystreamPos, chunk);
+			authenticate(buff, start, chunk);
 			
-			for (int k = 0; k < loopCount; k++) {
-				buff[j + k] = (byte)(buff[j + k] ^ counterBlock[k]);
+			start += chunk;
+			keystreamPos += chunk;
+		}
+		
+		return len;
+	}
+	
+	/**
+	 * Enables parallel encryption: ranges of at least threshold bytes are split
+	 * into counter aligned segments which are encrypted on the pool, the MAC is
+	 * then fed with the whole range in order. A threshold of 0 disables it.
+	 * @param threshold
+	 * @param pool pool to run segments on, null for the common pool
+	 */
+	public void setParallelEncryption(int threshold, ForkJoinPool pool) {
+		if (threshold < 0) {
+			throw new RuntimeException("invalid parallel encryption threshold: " + threshold);
+		}
+		this.parallelThreshold = threshold;
+		this.parallelPool = pool != null ? pool : ForkJoinPool.commonPool();
+	}
+	
+	/**
+	 * Starts generating keystream ahead of the data on a background thread.
+	 * Must be called before anything is encrypted, and turns off parallel
+	 * encryption as the keystream is then consumed strictly in order.
+	 * @param size size of the prefetch ring buffer in bytes
+	 */
+	public void setKeystreamPrefetch(int size) {
+		if (nonce != 1 || keystreamLimit != 0) {
+			throw new RuntimeException("keystream prefetch has to be set before encrypting data");
+		}
+		if (keystreamPrefetcher != null) {
+			keystreamPrefetcher.close();
+		}
+		keystreamPrefetcher = new KeystreamPrefetcher(createKeystreamGenerator(keystreamBackend, aesKey), size);
+		keystreamGenerator = keystreamPrefetcher;
+	}
+	
+	/**
+	 * Moves the HMAC over the ciphertext to a background thread, which is fed
+	 * through a bounded ring. Must be called before anything is encrypted.
+	 * @param size size of the ring in bytes
+	 */
+	public void setMacPipeline(int size) {
+		if (nonce != 1 || keystreamLimit != 0) {
+			throw new RuntimeException("mac pipeline has to be set before encrypting data");
+		}
+		if (macPipeline != null) {
+			macPipeline.close();
+		}
+		macPipeline = new MacPipeline(mac, size);
+	}
+	
+	private void authenticate(byte[] buff, int start, int len) {
+		if (macPipeline != null) {
+			macPipeline.update(buff, start, len);
+		} else {
+			mac.update(buff, start, len);
+		}
+	}
+	
+	/**
+	 * Releases background resources, if any. The encrypter cannot be used afterwards.
+	 * Stops the keystream and MAC threads whether or not getFinalMac was called,
+	 * and may be called more than once.
+	 */
+	public void close() {
+		if (keystreamPrefetcher != null) {
+			keystreamPrefetcher.close();
+			keystreamPrefetcher = null;
+		}
+		if (macPipeline != null) {
+			macPipeline.close();
+			macPipeline = null;
+		}
+		if (segmentKeystreams != null) {
+			for (int i = 0; i < segmentKeystreams.length; i++) {
+				if (segmentKeystreams[i] != null) {
+					Arrays.fill(segmentKeystreams[i], (byte)0);
+				}
 			}
-			
-			mac.update(buff, j, loopCount);
-			nonce++;
+			segmentKeystreams = null;
+			segmentGenerators = null;
+		}
+		Arrays.fill(keystream, (byte)0);
+		Arrays.fill(aesKey, (byte)0);
+		Arrays.fill(macKey, (byte)0);
+		if (mac != null) {
+			mac.release();
+			mac = null;
+		}
+	}
+	
+	private int encryptAndAuthenticateParallel(final byte[] buff, int start, int len) {
+		int end = start + len;
+		
+		// use up the keystream of a partial block from the previous call first,
+		// after that the range starts on a fresh counter block
+		int lead = Math.min(len, keystreamLimit - keystreamPos);
+		if (lead > 0) {
+			encryptAndAuthenticateSerial(buff, start, lead);
+			start += lead;
+		}
+		
+		int blocks = (end - start) / InternalZipConstants.AES_BLOCK_SIZE;
+		int segments = Math.max(1, Math.min(parallelPool.getParallelism() + 1,
+				blocks / InternalZipConstants.AES_MIN_PARALLEL_SEGMENT_BLOCKS));
+		int segmentBlocks = (blocks + segments - 1) / segments;
+		if (segmentGenerators == null || segmentGenerators.length < segments) {
+			segmentGenerators = segmentGenerators == null ? new IKeystreamGenerator[segments]
+					: Arrays.copyOf(segmentGenerators, segments);
+			segmentKeystreams = segmentKeystreams == null ? new byte[segments][]
+					: Arrays.copyOf(segmentKeystreams, segments);
+		}
+		
+		List<ForkJoinTask<?>> tasks = new ArrayList<>();
+		for (int i = 0; i < blocks; i += segmentBlocks) {
+			final int segment = i / segmentBlocks;
+			final int segmentStart = start + i * InternalZipConstants.AES_BLOCK_SIZE;
+			final int segmentNonce = nonce + i;
+			final int segmentCount = Math.min(segmentBlocks, blocks - i);
+			if (i + segmentBlocks >= blocks) {
+				// the calling thread takes the last segment
+				encryptSegment(segment, buff, segmentStart, segmentNonce, segmentCount);
+			} else {
+				tasks.add(parallelPool.submit(new Runnable() {
+					public void run() {
+						encryptSegment(segment, buff, segmentStart, segmentNonce, segmentCount);
+					}
+				}));
+			}
+		}
+		for (ForkJoinTask<?> task : tasks) {
+			task.join();
+		}
+		
+		int alignedLen = blocks * InternalZipConstants.AES_BLOCK_SIZE;
+		authenticate(buff, start, alignedLen);
+		nonce += blocks;
+		start += alignedLen;
+		
+		if (start < end) {
+			encryptAndAuthenticateSerial(buff, start, end - start);
 		}
 		
 		return len;
 	}
 	
+	private void encryptSegment(int segment, byte[] buff, int start, int segmentNonce, int blockCount) {
+		// keystream generators are not thread safe, each segment slot gets its own,
+		// created the first time the slot is used and kept for the next calls
+		IKeystreamGenerator generator = segmentGenerators[segment];
+		byte[] segmentKeystream = segmentKeystreams[segment];
+		if (generator == null) {
+			generator = createKeystreamGenerator(keystreamBackend, aesKey);
+			segmentKeystream = new byte[InternalZipConstants.BUFF_SIZE];
+			segmentGenerators[segment] = generator;
+			segmentKeystreams[segment] = segmentKeystream;
+		}
+		int maxBlocks = segmentKeystream.length / InternalZipConstants.AES_BLOCK_SIZE;
+		
+		while (blockCount > 0) {
+			int blocks = Math.min(blockCount, maxBlocks);
+			int chunk = blocks * InternalZipConstants.AES_BLOCK_SIZE;
+			generator.generate(segmentNonce, segmentKeystream, 0, blocks);
+			Raw.xorBytes(buff, start, segmentKeystream, 0, chunk);
+			segmentNonce += blocks;
+			start += chunk;
+			blockCount -= blocks;
+		}
+	}
+	
+	/**
+	 * Creates the keystream generator for the requested backend
+	 * @param keystreamBackend one of Zip4jConstants.KEYSTREAM_BACKEND_*
+	 * @param aesKey
+	 * @return keystream generator
+	 */
+	public static IKeystreamGenerator createKeystreamGenerator(int keystreamBackend, byte[] aesKey) {
+		switch (keystreamBackend) {
+		case Zip4jConstants.KEYSTREAM_BACKEND_JCA:
+			return new CipherKeystreamGenerator(aesKey);
+		case Zip4jConstants.KEYSTREAM_BACKEND_AES_ENGINE:
+			return new AESEngineKeystreamGenerator(aesKey);
+		case Zip4jConstants.KEYSTREAM_BACKEND_BITSLICED:
+			return new BitslicedKeystreamGenerator(aesKey);
+		case Zip4jConstants.KEYSTREAM_BACKEND_AUTO:
+			try {
+				return new CipherKeystreamGenerator(aesKey);
+			} catch (RuntimeException e) {
+				// restricted providers may not offer AES, the pure java engine always works
+				return new AESEngineKeystreamGenerator(aesKey);
+			}
+		default:
+			throw new RuntimeException("invalid keystream backend: " + keystreamBackend);
+		}
+	}
+	
 	private static byte[] generateSalt(int size) {
 		
-		if (size != 8 && size != 16) {
+		if (size != 8 && size != 12 && size != 16) {
 			throw new RuntimeException("invalid salt size, cannot generate salt");
 		}
 		
-		int rounds = 0;
-		
-		if (size == 8)
-			rounds = 2;
-		if (size == 16)
-			rounds = 4;
-		
 		byte[] salt = new byte[size];
-		for( int j = 0; j < rounds; j++ ) {
-			Random rand = new Random();
-			int i = rand.nextInt();
-			salt[0+j*4] = (byte)(i>>24);
-			salt[1+j*4] = (byte)(i>>16);
-			salt[2+j*4] = (byte)(i>>8);
-			salt[3+j*4] = (byte)i;
-		}
+		saltSource.nextBytes(salt, 0, size);
 		return salt;
 	}
 	
+	public static ISaltSource getSaltSource() {
+		return saltSource;
+	}
+	
+	/**
+	 * Replaces the source of salt for all encrypters created afterwards,
+	 * for example with a deterministic one in tests
+	 * @param source
+	 */
+	public static void setSaltSource(ISaltSource source) {
+		if (source == null) {
+			throw new RuntimeException("salt source is null");
+		}
+		saltSource = source;
+	}
+	
 	public byte[] getFinalMac() {
+		if (macPipeline != null) {
+			macPipeline.finish();
+			macPipeline = null;
+		}
 		byte[] rawMacBytes = mac.doFinal();
 		byte[] macBytes = new byte[10];
 		System.arraycopy(rawMacBytes, 0, macBytes, 0, 10);
@@ -26,8 +26,7 @@ import net.lingala.zip4j.util.InternalZipConstants;
 public class AESEngine {
 	
 	private int rounds;
-    private int[][] workingKey = null;
-    private int C0, C1, C2, C3;
+    private int[] workingKey = null;
 	
     public AESEngine(byte[] key) {
 		init(key);
@@ -37,7 +36,7 @@ public class AESEngine {
         workingKey = generateWorkingKey(key);
     }
     
-    private int[][] generateWorkingKey(byte[] key) {
+    private int[] generateWorkingKey(byte[] key) {
         int         kc = key.length / 4;
         int         t;
         
@@ -47,13 +46,13 @@ public class AESEngine {
         }
 
         rounds = kc + 6;
-        int[][] W = new int[rounds+1][4];
+        int[] W = new int[(rounds+1) << 2];
         
         t = 0;
         int i = 0;
         while (i < key.length)
         {
-            W[t >> 2][t & 3] = (key[i]&0xff) | ((key[i+1]&0xff) << 8) | ((key[i+2]&0xff) << 16) | (key[i+3] << 24);
+            W[t] = (key[i]&0xff) | ((key[i+1]&0xff) << 8) | ((key[i+2]&0xff) << 16) | (key[i+3] << 24);
             i+=4;
             t++;
         }
@@ -61,7 +60,7 @@ public class AESEngine {
         int k = (rounds + 1) << 2;
         for (i = kc; (i < k); i++)
         {
-            int temp = W[(i-1)>>2][(i-1)&3];
+            int temp = W[i-1];
             if ((i % kc) == 0)
             {
                 temp = subWord(shift(temp, 8)) ^ rcon[(i / kc)-1];
@@ -71,7 +70,7 @@ public class AESEngine {
                 temp = subWord(temp);
             }
             
-            W[i>>2][i&3] = W[(i - kc)>>2][(i-kc)&3] ^ temp;
+            W[i] = W[i - kc] ^ temp;
         }
         return W;
     }
@@ -81,108 +80,99 @@ public class AESEngine {
     }
     
     public int processBlock(byte[] in, int inOff, byte[] out, int outOff) {
+        return processBlocks(in, inOff, out, outOff, 1);
+    }
+    
+    /**
+     * Encrypts blockCount consecutive blocks. in and out may be the same
+     * buffer at the same offset.
+     * @return number of bytes processed
+     */
+    public int processBlocks(byte[] in, int inOff, byte[] out, int outOff, int blockCount) {
         if (workingKey == null)
         {
             throw new RuntimeException("AES engine not initialised");
         }
+        
+        int len = blockCount * InternalZipConstants.AES_BLOCK_SIZE;
 
-        if ((inOff + (32 / 2)) > in.length)
+        if ((inOff + len) > in.length)
         {
             throw new RuntimeException("input buffer too short");
         }
 
-        if ((outOff + (32 / 2)) > out.length)
+        if ((outOff + len) > out.length)
         {
             throw new RuntimeException("output buffer too short");
         }
         
-        stateIn(in, inOff);
-        encryptBlock(workingKey);
-        stateOut(out, outOff);
+        for (int i = 0; i < blockCount; i++)
+        {
+            encryptBlock(in, inOff, out, outOff);
+            inOff += InternalZipConstants.AES_BLOCK_SIZE;
+            outOff += InternalZipConstants.AES_BLOCK_SIZE;
+        }
         
-        return InternalZipConstants.AES_BLOCK_SIZE;
-    }
-
-    private final void stateIn(byte[] bytes, int off) {
-        int     index = off;
-
-        C0 = (bytes[index++] & 0xff);
-        C0 |= (bytes[index++] & 0xff) << 8;
-        C0 |= (bytes[index++] & 0xff) << 16;
-        C0 |= bytes[index++] << 24;
-
-        C1 = (bytes[index++] & 0xff);
-        C1 |= (bytes[index++] & 0xff) << 8;
-        C1 |= (bytes[index++] & 0xff) << 16;
-        C1 |= bytes[index++] << 24;
-
-        C2 = (bytes[index++] & 0xff);
-        C2 |= (bytes[index++] & 0xff) << 8;
-        C2 |= (bytes[index++] & 0xff) << 16;
-        C2 |= bytes[index++] << 24;
-
-        C3 = (bytes[index++] & 0xff);
-        C3 |= (bytes[index++] & 0xff) << 8;
-        C3 |= (bytes[index++] & 0xff) << 16;
-        C3 |= bytes[index++] << 24;
+        return len;
     }
 
-    private final void stateOut(byte[] bytes, int off) {
-        int     index = off;
+    private void encryptBlock(byte[] in, int inOff, byte[] out, int outOff) {
+        final int[] KW = workingKey;
+        int r0, r1, r2, r3;
 
-        bytes[index++] = (byte)C0;
-        bytes[index++] = (byte)(C0 >> 8);
-        bytes[index++] = (byte)(C0 >> 16);
-        bytes[index++] = (byte)(C0 >> 24);
+        int C0 = (in[inOff]&0xff) | ((in[inOff+1]&0xff) << 8) | ((in[inOff+2]&0xff) << 16) | (in[inOff+3] << 24);
+        int C1 = (in[inOff+4]&0xff) | ((in[inOff+5]&0xff) << 8) | ((in[inOff+6]&0xff) << 16) | (in[inOff+7] << 24);
+        int C2 = (in[inOff+8]&0xff) | ((in[inOff+9]&0xff) << 8) | ((in[inOff+10]&0xff) << 16) | (in[inOff+11] << 24);
+        int C3 = (in[inOff+12]&0xff) | ((in[inOff+13]&0xff) << 8) | ((in[inOff+14]&0xff) << 16) | (in[inOff+15] << 24);
 
-        bytes[index++] = (byte)C1;
-        bytes[index++] = (byte)(C1 >> 8);
-        bytes[index++] = (byte)(C1 >> 16);
-        bytes[index++] = (byte)(C1 >> 24);
+        C0 ^= KW[0];
+        C1 ^= KW[1];
+        C2 ^= KW[2];
+        C3 ^= KW[3];
 
-        bytes[index++] = (byte)C2;
-        bytes[index++] = (byte)(C2 >> 8);
-        bytes[index++] = (byte)(C2 >> 16);
-        bytes[index++] = (byte)(C2 >> 24);
+        int k = 4;
+        int last = (rounds - 1) << 2;
 
-        bytes[index++] = (byte)C3;
-        bytes[index++] = (byte)(C3 >> 8);
-        bytes[index++] = (byte)(C3 >> 16);
-        bytes[index++] = (byte)(C3 >> 24);
-    }
-
-    private final void encryptBlock(int[][] KW) {
-        int r, r0, r1, r2, r3;
-
-        C0 ^= KW[0][0];
-        C1 ^= KW[0][1];
-        C2 ^= KW[0][2];
-        C3 ^= KW[0][3];
-
-        r = 1;
-
-        while (r < rounds - 1)
+        while (k < last)
         {
-            r0 = T0[C0&255] ^ shift(T0[(C1>>8)&255], 24) ^ shift(T0[(C2>>16)&255],16) ^ shift(T0[(C3>>24)&255],8) ^ KW[r][0];
-            r1 = T0[C1&255] ^ shift(T0[(C2>>8)&255], 24) ^ shift(T0[(C3>>16)&255], 16) ^ shift(T0[(C0>>24)&255], 8) ^ KW[r][1];
-            r2 = T0[C2&255] ^ shift(T0[(C3>>8)&255], 24) ^ shift(T0[(C0>>16)&255], 16) ^ shift(T0[(C1>>24)&255], 8) ^ KW[r][2];
-            r3 = T0[C3&255] ^ shift(T0[(C0>>8)&255], 24) ^ shift(T0[(C1>>16)&255], 16) ^ shift(T0[(C2>>24)&255], 8) ^ KW[r++][3];
-            C0 = T0[r0&255] ^ shift(T0[(r1>>8)&255], 24) ^ shift(T0[(r2>>16)&255], 16) ^ shift(T0[(r3>>24)&255], 8) ^ KW[r][0];
-            C1 = T0[r1&255] ^ shift(T0[(r2>>8)&255], 24) ^ shift(T0[(r3>>16)&255], 16) ^ shift(T0[(r0>>24)&255], 8) ^ KW[r][1];
-            C2 = T0[r2&255] ^ shift(T0[(r3>>8)&255], 24) ^ shift(T0[(r0>>16)&255], 16) ^ shift(T0[(r1>>24)&255], 8) ^ KW[r][2];
-            C3 = T0[r3&255] ^ shift(T0[(r0>>8)&255], 24) ^ shift(T0[(r1>>16)&255], 16) ^ shift(T0[(r2>>24)&255], 8) ^ KW[r++][3];
+            r0 = T0[C0&255] ^ T1[(C1>>8)&255] ^ T2[(C2>>16)&255] ^ T3[C3>>>24] ^ KW[k];
+            r1 = T0[C1&255] ^ T1[(C2>>8)&255] ^ T2[(C3>>16)&255] ^ T3[C0>>>24] ^ KW[k+1];
+            r2 = T0[C2&255] ^ T1[(C3>>8)&255] ^ T2[(C0>>16)&255] ^ T3[C1>>>24] ^ KW[k+2];
+            r3 = T0[C3&255] ^ T1[(C0>>8)&255] ^ T2[(C1>>16)&255] ^ T3[C2>>>24] ^ KW[k+3];
+            C0 = T0[r0&255] ^ T1[(r1>>8)&255] ^ T2[(r2>>16)&255] ^ T3[r3>>>24] ^ KW[k+4];
+            C1 = T0[r1&255] ^ T1[(r2>>8)&255] ^ T2[(r3>>16)&255] ^ T3[r0>>>24] ^ KW[k+5];
+            C2 = T0[r2&255] ^ T1[(r3>>8)&255] ^ T2[(r0>>16)&255] ^ T3[r1>>>24] ^ KW[k+6];
+            C3 = T0[r3&255] ^ T1[(r0>>8)&255] ^ T2[(r1>>16)&255] ^ T3[r2>>>24] ^ KW[k+7];
+            k += 8;
         }
 
-        r0 = T0[C0&255] ^ shift(T0[(C1>>8)&255], 24) ^ shift(T0[(C2>>16)&255], 16) ^ shift(T0[(C3>>24)&255], 8) ^ KW[r][0];
-        r1 = T0[C1&255] ^ shift(T0[(C2>>8)&255], 24) ^ shift(T0[(C3>>16)&255], 16) ^ shift(T0[(C0>>24)&255], 8) ^ KW[r][1];
-        r2 = T0[C2&255] ^ shift(T0[(C3>>8)&255], 24) ^ shift(T0[(C0>>16)&255], 16) ^ shift(T0[(C1>>24)&255], 8) ^ KW[r][2];
-        r3 = T0[C3&255] ^ shift(T0[(C0>>8)&255], 24) ^ shift(T0[(C1>>16)&255], 16) ^ shift(T0[(C2>>24)&255], 8) ^ KW[r++][3];
+        r0 = T0[C0&255] ^ T1[(C1>>8)&255] ^ T2[(C2>>16)&255] ^ T3[C3>>>24] ^ KW[k];
+        r1 = T0[C1&255] ^ T1[(C2>>8)&255] ^ T2[(C3>>16)&255] ^ T3[C0>>>24] ^ KW[k+1];
+        r2 = T0[C2&255] ^ T1[(C3>>8)&255] ^ T2[(C0>>16)&255] ^ T3[C1>>>24] ^ KW[k+2];
+        r3 = T0[C3&255] ^ T1[(C0>>8)&255] ^ T2[(C1>>16)&255] ^ T3[C2>>>24] ^ KW[k+3];
+        k += 4;
 
-        C0 = (S[r0&255]&255) ^ ((S[(r1>>8)&255]&255)<<8) ^ ((S[(r2>>16)&255]&255)<<16) ^ (S[(r3>>24)&255]<<24) ^ KW[r][0];
-        C1 = (S[r1&255]&255) ^ ((S[(r2>>8)&255]&255)<<8) ^ ((S[(r3>>16)&255]&255)<<16) ^ (S[(r0>>24)&255]<<24) ^ KW[r][1];
-        C2 = (S[r2&255]&255) ^ ((S[(r3>>8)&255]&255)<<8) ^ ((S[(r0>>16)&255]&255)<<16) ^ (S[(r1>>24)&255]<<24) ^ KW[r][2];
-        C3 = (S[r3&255]&255) ^ ((S[(r0>>8)&255]&255)<<8) ^ ((S[(r1>>16)&255]&255)<<16) ^ (S[(r2>>24)&255]<<24) ^ KW[r][3];
+        C0 = (S[r0&255]&255) ^ ((S[(r1>>8)&255]&255)<<8) ^ ((S[(r2>>16)&255]&255)<<16) ^ (S[r3>>>24]<<24) ^ KW[k];
+        C1 = (S[r1&255]&255) ^ ((S[(r2>>8)&255]&255)<<8) ^ ((S[(r3>>16)&255]&255)<<16) ^ (S[r0>>>24]<<24) ^ KW[k+1];
+        C2 = (S[r2&255]&255) ^ ((S[(r3>>8)&255]&255)<<8) ^ ((S[(r0>>16)&255]&255)<<16) ^ (S[r1>>>24]<<24) ^ KW[k+2];
+        C3 = (S[r3&255]&255) ^ ((S[(r0>>8)&255]&255)<<8) ^ ((S[(r1>>16)&255]&255)<<16) ^ (S[r2>>>24]<<24) ^ KW[k+3];
 
+        out[outOff] = (byte)C0;
+        out[outOff+1] = (byte)(C0 >> 8);
+        out[outOff+2] = (byte)(C0 >> 16);
+        out[outOff+3] = (byte)(C0 >> 24);
+        out[outOff+4] = (byte)C1;
+        out[outOff+5] = (byte)(C1 >> 8);
+        out[outOff+6] = (byte)(C1 >> 16);
+        out[outOff+7] = (byte)(C1 >> 24);
+        out[outOff+8] = (byte)C2;
+        out[outOff+9] = (byte)(C2 >> 8);
+        out[outOff+10] = (byte)(C2 >> 16);
+        out[outOff+11] = (byte)(C2 >> 24);
+        out[outOff+12] = (byte)C3;
+        out[outOff+13] = (byte)(C3 >> 8);
+        out[outOff+14] = (byte)(C3 >> 16);
+        out[outOff+15] = (byte)(C3 >> 24);
     }
     
     private static int shift(int r, int shift) {
@@ -287,4 +277,18 @@ public class AESEngine {
      0x772d2d5a, 0x110f0f1e, 0xcbb0b07b, 0xfc5454a8, 0xd6bbbb6d, 
      0x3a16162c};
     
+    // T1..T3 are T0 rotated by one, two and three bytes
+    private static final int[] T1 = new int[256];
+    private static final int[] T2 = new int[256];
+    private static final int[] T3 = new int[256];
+    
+    static {
+        for (int i = 0; i < 256; i++)
+        {
+            T1[i] = shift(T0[i], 24);
+            T2[i] = shift(T0[i], 16);
+            T3[i] = shift(T0[i], 8);
+        }
+    }
+    
 }
@@ -0,0 +1,38 @@
+/*
+* Copyright 2010 Srikanth Reddy Lingala  
+* 
+* Licensed under the Apache License, Version 2.0 (the "License"); 
+* you may not use this file except in compliance with the License. 
+* You may obtain a copy of the License at 
+* 
+* http://www.apache.org/licenses/LICENSE-2.0 
+* 
+* Unless required by applicable law or agreed to in writing, 
+* software distributed under the License is distributed on an "AS IS" BASIS, 
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+* See the License for the specific language governing permissions and 
+* limitations under the License. 
+*/
+
+package net.lingala.zip4j.crypto;
+
+import net.lingala.zip4j.util.Raw;
+
+/**
+ * Pure java keystream generator backed by AESEngine
+ */
+public class AESEngineKeystreamGenerator implements IKeystreamGenerator {
+	
+	private AESEngine aesEngine;
+	
+	public AESEngineKeystreamGenerator(byte[] key) {
+		aesEngine = new AESEngine(key);
+	}
+	
+	public void generate(int nonce, byte[] out, int outOff, int blockCount) {
+		// the engine reads a whole block before writing it, counters are encrypted in place
+		Raw.prepareBuffAESCounterBlocks(out, outOff, nonce, blockCount);
+		aesEngine.processBlocks(out, outOff, out, outOff, blockCount);
+	}
+	
+}
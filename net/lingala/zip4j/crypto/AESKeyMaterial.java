@@ -0,0 +1,69 @@
+/*
+* Copyright 2010 Srikanth Reddy Lingala  
+* 
+* Licensed under the Apache License, Version 2.0 (the "License"); 
+* you may not use this file except in compliance with the License. 
+* You may obtain a copy of the License at 
+* 
+* http://www.apache.org/licenses/LICENSE-2.0 
+* 
+* Unless required by applicable law or agreed to in writing, 
+* software distributed under the License is distributed on an "AS IS" BASIS, 
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+* See the License for the specific language governing permissions and 
+* limitations under the License. 
+*/
+
+
+package net.lingala.zip4j.crypto;
+
+import java.util.Arrays;
+
+/**
+ * Salt and PBKDF2 derived keys for one AES encrypted entry. Must never be
+ * used for more than one entry.
+ */
+public class AESKeyMaterial {
+	
+	private byte[] saltBytes;
+	private byte[] aesKey;
+	private byte[] macKey;
+	private byte[] derivedPasswordVerifier;
+	
+	public AESKeyMaterial(byte[] saltBytes, byte[] aesKey, byte[] macKey, byte[] derivedPasswordVerifier) {
+		if (saltBytes == null || aesKey == null || macKey == null || derivedPasswordVerifier == null) {
+			throw new RuntimeException("incomplete AES key material");
+		}
+		
+		this.saltBytes = saltBytes;
+		this.aesKey = aesKey;
+		this.macKey = macKey;
+		this.derivedPasswordVerifier = derivedPasswordVerifier;
+	}
+
+	public byte[] getSaltBytes() {
+		return saltBytes;
+	}
+
+	public byte[] getAesKey() {
+		return aesKey;
+	}
+
+	public byte[] getMacKey() {
+		return macKey;
+	}
+
+	public byte[] getDerivedPasswordVerifier() {
+		return derivedPasswordVerifier;
+	}
+	
+	/**
+	 * Wipes the keys
+	 */
+	public void clear() {
+		Arrays.fill(aesKey, (byte)0);
+		Arrays.fill(macKey, (byte)0);
+		Arrays.fill(derivedPasswordVerifier, (byte)0);
+	}
+	
+}
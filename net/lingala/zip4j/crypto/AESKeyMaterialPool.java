@@ -0,0 +1,195 @@
+/*
+* Copyright 2010 Srikanth Reddy Lingala  
+* 
+* Licensed under the Apache License, Version 2.0 (the "License"); 
+* you may not use this file except in compliance with the License. 
+* You may obtain a copy of the License at 
+* 
+* http://www.apache.org/licenses/LICENSE-2.0 
+* 
+* Unless required by applicable law or agreed to in writing, 
+* software distributed under the License is distributed on an "AS IS" BASIS, 
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+* See the License for the specific language governing permissions and 
+* limitations under the License. 
+*/
+
+
+package net.lingala.zip4j.crypto;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.lingala.zip4j.util.InternalZipConstants;
+
+/**
+ * Keeps a number of freshly salted, pre-derived key material bundles ready
+ * for one password, so that opening an encrypted stream does not have to
+ * wait for PBKDF2. Background threads refill the pool as bundles are taken.
+ * Each bundle is handed out once.
+ */
+public class AESKeyMaterialPool {
+	
+	private final char[] password;
+	private final int keyStrength;
+	private final int size;
+	private final ArrayBlockingQueue<AESKeyMaterial> pool;
+	private final List<Thread> refillThreads;
+	private volatile boolean running;
+	
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong refills = new AtomicLong();
+	
+	/**
+	 * @param password password to derive keys for, copied by the pool
+	 * @param keyStrength
+	 * @param size number of bundles to keep ready
+	 * @param refillThreadCount number of background threads deriving bundles
+	 */
+	public AESKeyMaterialPool(char[] password, int keyStrength, int size, int refillThreadCount) {
+		if (password == null || password.length == 0) {
+			throw new RuntimeException("input password is empty or null, cannot create key material pool");
+		}
+		if (size <= 0 || refillThreadCount <= 0) {
+			throw new RuntimeException("invalid key material pool size or refill thread count");
+		}
+		AESEncrypter.getKeyLength(keyStrength);
+		
+		this.password = password.clone();
+		this.keyStrength = keyStrength;
+		this.size = size;
+		this.pool = new ArrayBlockingQueue<>(size);
+		this.refillThreads = new ArrayList<>();
+		this.running = true;
+		
+		for (int i = 0; i < refillThreadCount; i++) {
+			Thread thread = new Thread(new Runnable() {
+				public void run() {
+					refill();
+				}
+			}, InternalZipConstants.THREAD_NAME + "-keypool-" + i);
+			thread.setDaemon(true);
+			refillThreads.add(thread);
+			thread.start();
+		}
+	}
+	
+	private void refill() {
+		try {
+			while (running) {
+				AESKeyMaterial keyMaterial = AESEncrypter.deriveKeyMaterial(password, keyStrength, null);
+				if (!running) {
+					keyMaterial.clear();
+					return;
+				}
+				pool.put(keyMaterial);
+				refills.incrementAndGet();
+				if (!running) {
+					// raced with shutdown, which may already have drained the pool
+					clearPool();
+				}
+			}
+		} catch (InterruptedException e) {
+			// shut down
+		}
+	}
+	
+	/**
+	 * Takes a bundle out of the pool. When the pool is empty, the bundle is
+	 * derived on the calling thread.
+	 * @return key material that is not handed out to anybody else
+	 */
+	public AESKeyMaterial take() {
+		char[] passwordCopy;
+		synchronized (this) {
+			if (!running) {
+				throw new RuntimeException("key material pool is shut down");
+			}
+			AESKeyMaterial keyMaterial = pool.poll();
+			if (keyMaterial != null) {
+				hits.incrementAndGet();
+				return keyMaterial;
+			}
+			misses.incrementAndGet();
+			// shutdown wipes the password, derive from a private copy
+			passwordCopy = password.clone();
+		}
+		try {
+			return AESEncrypter.deriveKeyMaterial(passwordCopy, keyStrength, null);
+		} finally {
+			Arrays.fill(passwordCopy, '\0');
+		}
+	}
+	
+	/**
+	 * Stops the refill threads and wipes the password and all pooled keys
+	 */
+	public void shutdown() {
+		synchronized (this) {
+			running = false;
+		}
+		for (Thread thread : refillThreads) {
+			thread.interrupt();
+		}
+		for (Thread thread : refillThreads) {
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				break;
+			}
+		}
+		synchronized (this) {
+			clearPool();
+			Arrays.fill(password, '\0');
+		}
+	}
+	
+	private void clearPool() {
+		AESKeyMaterial keyMaterial;
+		while ((keyMaterial = pool.poll()) != null) {
+			keyMaterial.clear();
+		}
+	}
+	
+	public int getKeyStrength() {
+		return keyStrength;
+	}
+	
+	public int getSize() {
+		return size;
+	}
+	
+	/**
+	 * @return number of bundles ready to be taken
+	 */
+	public int getAvailable() {
+		return pool.size();
+	}
+	
+	/**
+	 * @return number of takes served from the pool
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+	
+	/**
+	 * @return number of takes that had to derive on the calling thread
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+	
+	/**
+	 * @return number of bundles derived by the refill threads
+	 */
+	public long getRefills() {
+		return refills.get();
+	}
+	
+}
@@ -0,0 +1,453 @@
+/*
+* Copyright 2010 Srikanth Reddy Lingala
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package net.lingala.zip4j.crypto;
+
+import java.util.Arrays;
+
+import net.lingala.zip4j.util.InternalZipConstants;
+
+/**
+ * Bitsliced AES encryption engine, encrypting four blocks per pass in eight
+ * 64-bit lanes. There are no table lookups, so the timing does not depend on
+ * the key, the data or the cache.
+ *
+ * Core routines are referred from Thomas Pornin's BearSSL "ct64" implementation -
+ * see https://bearssl.org/
+ */
+public class BitslicedAESEngine {
+
+	private static final int BLOCKS_PER_PASS = 4;
+
+	private static final int[] RCON = {
+		0x01, 0x02, 0x04, 0x08, 0x10, 0x20, 0x40, 0x80, 0x1B, 0x36
+	};
+
+	private int rounds;
+	private long[] skey;
+
+	private final long[] q = new long[8];
+	private final int[] w = new int[BLOCKS_PER_PASS * 4];
+
+	public BitslicedAESEngine(byte[] key) {
+		init(key);
+	}
+
+	public void init(byte[] key) {
+		if (key == null) {
+			throw new RuntimeException("key is null, cannot initialise AES engine");
+		}
+
+		int nk = key.length / 4;
+		if ((nk != 4 && nk != 6 && nk != 8) || nk * 4 != key.length) {
+			throw new RuntimeException("invalid key length (not 128/192/256)");
+		}
+
+		rounds = nk + 6;
+		int nkf = (rounds + 1) << 2;
+		int[] words = new int[nkf];
+		for (int i = 0; i < nk; i++) {
+			words[i] = decodeIntLE(key, i << 2);
+		}
+
+		int tmp = words[nk - 1];
+		for (int i = nk, j = 0, k = 0; i < nkf; i++) {
+			if (j == 0) {
+				tmp = (tmp << 24) | (tmp >>> 8);
+				tmp = subWord(tmp) ^ RCON[k];
+			} else if (nk > 6 && j == 4) {
+				tmp = subWord(tmp);
+			}
+			tmp ^= words[i - nk];
+			words[i] = tmp;
+			if (++j == nk) {
+				j = 0;
+				k++;
+			}
+		}
+
+		// every round key is replicated in all four block lanes
+		skey = new long[(rounds + 1) << 3];
+		long[] t = new long[8];
+		for (int i = 0; i < nkf; i += 4) {
+			interleaveIn(t, 0, 4, words, i);
+			t[1] = t[0];
+			t[2] = t[0];
+			t[3] = t[0];
+			t[5] = t[4];
+			t[6] = t[4];
+			t[7] = t[4];
+			ortho(t);
+			System.arraycopy(t, 0, skey, i << 1, 8);
+		}
+		Arrays.fill(words, 0);
+		Arrays.fill(t, 0);
+	}
+
+	/**
+	 * Encrypts blockCount consecutive blocks. in and out may be the same
+	 * buffer at the same offset.
+	 * @return number of bytes processed
+	 */
+	public int processBlocks(byte[] in, int inOff, byte[] out, int outOff, int blockCount) {
+		if (skey == null) {
+			throw new RuntimeException("AES engine not initialised");
+		}
+
+		int len = blockCount * InternalZipConstants.AES_BLOCK_SIZE;
+
+		if (inOff + len > in.length) {
+			throw new RuntimeException("input buffer too short");
+		}
+
+		if (outOff + len > out.length) {
+			throw new RuntimeException("output buffer too short");
+		}
+
+		while (blockCount > 0) {
+			int blocks = Math.min(blockCount, BLOCKS_PER_PASS);
+			int words = blocks << 2;
+
+			for (int i = 0; i < words; i++) {
+				w[i] = decodeIntLE(in, inOff + (i << 2));
+			}
+			// unused lanes of a short pass are encrypted too and then dropped
+			for (int i = words; i < w.length; i++) {
+				w[i] = 0;
+			}
+
+			for (int i = 0; i < BLOCKS_PER_PASS; i++) {
+				interleaveIn(q, i, i + 4, w, i << 2);
+			}
+			ortho(q);
+			encrypt(q);
+			ortho(q);
+			for (int i = 0; i < BLOCKS_PER_PASS; i++) {
+				interleaveOut(w, i << 2, q[i], q[i + 4]);
+			}
+
+			for (int i = 0; i < words; i++) {
+				encodeIntLE(out, outOff + (i << 2), w[i]);
+			}
+
+			inOff += words << 2;
+			outOff += words << 2;
+			blockCount -= blocks;
+		}
+
+		Arrays.fill(q, 0);
+		return len;
+	}
+
+	private void encrypt(long[] q) {
+		addRoundKey(q, 0);
+		for (int u = 1; u < rounds; u++) {
+			sbox(q);
+			shiftRows(q);
+			mixColumns(q);
+			addRoundKey(q, u << 3);
+		}
+		sbox(q);
+		shiftRows(q);
+		addRoundKey(q, rounds << 3);
+	}
+
+	private void addRoundKey(long[] q, int off) {
+		q[0] ^= skey[off];
+		q[1] ^= skey[off + 1];
+		q[2] ^= skey[off + 2];
+		q[3] ^= skey[off + 3];
+		q[4] ^= skey[off + 4];
+		q[5] ^= skey[off + 5];
+		q[6] ^= skey[off + 6];
+		q[7] ^= skey[off + 7];
+	}
+
+	private static void shiftRows(long[] q) {
+		for (int i = 0; i < 8; i++) {
+			long x = q[i];
+			q[i] = (x & 0x000000000000FFFFL)
+				| ((x & 0x00000000FFF00000L) >>> 4)
+				| ((x & 0x00000000000F0000L) << 12)
+				| ((x & 0x0000FF0000000000L) >>> 8)
+				| ((x & 0x000000FF00000000L) << 8)
+				| ((x & 0xF000000000000000L) >>> 12)
+				| ((x & 0x0FFF000000000000L) << 4);
+		}
+	}
+
+	private static void mixColumns(long[] q) {
+		long q0 = q[0], q1 = q[1], q2 = q[2], q3 = q[3];
+		long q4 = q[4], q5 = q[5], q6 = q[6], q7 = q[7];
+		long r0 = (q0 >>> 16) | (q0 << 48);
+		long r1 = (q1 >>> 16) | (q1 << 48);
+		long r2 = (q2 >>> 16) | (q2 << 48);
+		long r3 = (q3 >>> 16) | (q3 << 48);
+		long r4 = (q4 >>> 16) | (q4 << 48);
+		long r5 = (q5 >>> 16) | (q5 << 48);
+		long r6 = (q6 >>> 16) | (q6 << 48);
+		long r7 = (q7 >>> 16) | (q7 << 48);
+
+		q[0] = q7 ^ r7 ^ r0 ^ rotr32(q0 ^ r0);
+		q[1] = q0 ^ r0 ^ q7 ^ r7 ^ r1 ^ rotr32(q1 ^ r1);
+		q[2] = q1 ^ r1 ^ r2 ^ rotr32(q2 ^ r2);
+		q[3] = q2 ^ r2 ^ q7 ^ r7 ^ r3 ^ rotr32(q3 ^ r3);
+		q[4] = q3 ^ r3 ^ q7 ^ r7 ^ r4 ^ rotr32(q4 ^ r4);
+		q[5] = q4 ^ r4 ^ r5 ^ rotr32(q5 ^ r5);
+		q[6] = q5 ^ r5 ^ r6 ^ rotr32(q6 ^ r6);
+		q[7] = q6 ^ r6 ^ r7 ^ rotr32(q7 ^ r7);
+	}
+
+	private static long rotr32(long x) {
+		return (x << 32) | (x >>> 32);
+	}
+
+	/**
+	 * Boyar-Peralta S-box circuit, applied to all 32 bytes held in the lanes
+	 */
+	private static void sbox(long[] q) {
+		long x0 = q[7], x1 = q[6], x2 = q[5], x3 = q[4];
+		long x4 = q[3], x5 = q[2], x6 = q[1], x7 = q[0];
+
+		// top linear transformation
+		long y14 = x3 ^ x5;
+		long y13 = x0 ^ x6;
+		long y9 = x0 ^ x3;
+		long y8 = x0 ^ x5;
+		long t0 = x1 ^ x2;
+		long y1 = t0 ^ x7;
+		long y4 = y1 ^ x3;
+		long y12 = y13 ^ y14;
+		long y2 = y1 ^ x0;
+		long y5 = y1 ^ x6;
+		long y3 = y5 ^ y8;
+		long t1 = x4 ^ y12;
+		long y15 = t1 ^ x5;
+		long y20 = t1 ^ x1;
+		long y6 = y15 ^ x7;
+		long y10 = y15 ^ t0;
+		long y11 = y20 ^ y9;
+		long y7 = x7 ^ y11;
+		long y17 = y10 ^ y11;
+		long y19 = y10 ^ y8;
+		long y16 = t0 ^ y11;
+		long y21 = y13 ^ y16;
+		long y18 = x0 ^ y16;
+
+		// non-linear section
+		long t2 = y12 & y15;
+		long t3 = y3 & y6;
+		long t4 = t3 ^ t2;
+		long t5 = y4 & x7;
+		long t6 = t5 ^ t2;
+		long t7 = y13 & y16;
+		long t8 = y5 & y1;
+		long t9 = t8 ^ t7;
+		long t10 = y2 & y7;
+		long t11 = t10 ^ t7;
+		long t12 = y9 & y11;
+		long t13 = y14 & y17;
+		long t14 = t13 ^ t12;
+		long t15 = y8 & y10;
+		long t16 = t15 ^ t12;
+		long t17 = t4 ^ t14;
+		long t18 = t6 ^ t16;
+		long t19 = t9 ^ t14;
+		long t20 = t11 ^ t16;
+		long t21 = t17 ^ y20;
+		long t22 = t18 ^ y19;
+		long t23 = t19 ^ y21;
+		long t24 = t20 ^ y18;
+
+		long t25 = t21 ^ t22;
+		long t26 = t21 & t23;
+		long t27 = t24 ^ t26;
+		long t28 = t25 & t27;
+		long t29 = t28 ^ t22;
+		long t30 = t23 ^ t24;
+		long t31 = t22 ^ t26;
+		long t32 = t31 & t30;
+		long t33 = t32 ^ t24;
+		long t34 = t23 ^ t33;
+		long t35 = t27 ^ t33;
+		long t36 = t24 & t35;
+		long t37 = t36 ^ t34;
+		long t38 = t27 ^ t36;
+		long t39 = t29 & t38;
+		long t40 = t25 ^ t39;
+
+		long t41 = t40 ^ t37;
+		long t42 = t29 ^ t33;
+		long t43 = t29 ^ t40;
+		long t44 = t33 ^ t37;
+		long t45 = t42 ^ t41;
+		long z0 = t44 & y15;
+		long z1 = t37 & y6;
+		long z2 = t33 & x7;
+		long z3 = t43 & y16;
+		long z4 = t40 & y1;
+		long z5 = t29 & y7;
+		long z6 = t42 & y11;
+		long z7 = t45 & y17;
+		long z8 = t41 & y10;
+		long z9 = t44 & y12;
+		long z10 = t37 & y3;
+		long z11 = t33 & y4;
+		long z12 = t43 & y13;
+		long z13 = t40 & y5;
+		long z14 = t29 & y2;
+		long z15 = t42 & y9;
+		long z16 = t45 & y14;
+		long z17 = t41 & y8;
+
+		// bottom linear transformation
+		long t46 = z15 ^ z16;
+		long t47 = z10 ^ z11;
+		long t48 = z5 ^ z13;
+		long t49 = z9 ^ z10;
+		long t50 = z2 ^ z12;
+		long t51 = z2 ^ z5;
+		long t52 = z7 ^ z8;
+		long t53 = z0 ^ z3;
+		long t54 = z6 ^ z7;
+		long t55 = z16 ^ z17;
+		long t56 = z12 ^ t48;
+		long t57 = t50 ^ t53;
+		long t58 = z4 ^ t46;
+		long t59 = z3 ^ t54;
+		long t60 = t46 ^ t57;
+		long t61 = z14 ^ t57;
+		long t62 = t52 ^ t58;
+		long t63 = t49 ^ t58;
+		long t64 = z4 ^ t59;
+		long t65 = t61 ^ t62;
+		long t66 = z1 ^ t63;
+		long s0 = t59 ^ t63;
+		long s6 = t56 ^ ~t62;
+		long s7 = t48 ^ ~t60;
+		long t67 = t64 ^ t65;
+		long s3 = t53 ^ t66;
+		long s4 = t51 ^ t66;
+		long s5 = t47 ^ t65;
+		long s1 = t64 ^ ~s3;
+		long s2 = t55 ^ ~t67;
+
+		q[7] = s0;
+		q[6] = s1;
+		q[5] = s2;
+		q[4] = s3;
+		q[3] = s4;
+		q[2] = s5;
+		q[1] = s6;
+		q[0] = s7;
+	}
+
+	/**
+	 * Transposes the eight lanes so that each one holds a single bit of
+	 * every byte. The transform is its own inverse.
+	 */
+	private static void ortho(long[] q) {
+		swap(q, 0, 1, 0x5555555555555555L, 0xAAAAAAAAAAAAAAAAL, 1);
+		swap(q, 2, 3, 0x5555555555555555L, 0xAAAAAAAAAAAAAAAAL, 1);
+		swap(q, 4, 5, 0x5555555555555555L, 0xAAAAAAAAAAAAAAAAL, 1);
+		swap(q, 6, 7, 0x5555555555555555L, 0xAAAAAAAAAAAAAAAAL, 1);
+
+		swap(q, 0, 2, 0x3333333333333333L, 0xCCCCCCCCCCCCCCCCL, 2);
+		swap(q, 1, 3, 0x3333333333333333L, 0xCCCCCCCCCCCCCCCCL, 2);
+		swap(q, 4, 6, 0x3333333333333333L, 0xCCCCCCCCCCCCCCCCL, 2);
+		swap(q, 5, 7, 0x3333333333333333L, 0xCCCCCCCCCCCCCCCCL, 2);
+
+		swap(q, 0, 4, 0x0F0F0F0F0F0F0F0FL, 0xF0F0F0F0F0F0F0F0L, 4);
+		swap(q, 1, 5, 0x0F0F0F0F0F0F0F0FL, 0xF0F0F0F0F0F0F0F0L, 4);
+		swap(q, 2, 6, 0x0F0F0F0F0F0F0F0FL, 0xF0F0F0F0F0F0F0F0L, 4);
+		swap(q, 3, 7, 0x0F0F0F0F0F0F0F0FL, 0xF0F0F0F0F0F0F0F0L, 4);
+	}
+
+	private static void swap(long[] q, int x, int y, long cl, long ch, int s) {
+		long a = q[x];
+		long b = q[y];
+		q[x] = (a & cl) | ((b & cl) << s);
+		q[y] = ((a & ch) >>> s) | (b & ch);
+	}
+
+	/**
+	 * Spreads the four words of one block over two lanes
+	 */
+	private static void interleaveIn(long[] q, int q0, int q1, int[] w, int off) {
+		long x0 = w[off] & 0xFFFFFFFFL;
+		long x1 = w[off + 1] & 0xFFFFFFFFL;
+		long x2 = w[off + 2] & 0xFFFFFFFFL;
+		long x3 = w[off + 3] & 0xFFFFFFFFL;
+		x0 |= (x0 << 16);
+		x1 |= (x1 << 16);
+		x2 |= (x2 << 16);
+		x3 |= (x3 << 16);
+		x0 &= 0x0000FFFF0000FFFFL;
+		x1 &= 0x0000FFFF0000FFFFL;
+		x2 &= 0x0000FFFF0000FFFFL;
+		x3 &= 0x0000FFFF0000FFFFL;
+		x0 |= (x0 << 8);
+		x1 |= (x1 << 8);
+		x2 |= (x2 << 8);
+		x3 |= (x3 << 8);
+		x0 &= 0x00FF00FF00FF00FFL;
+		x1 &= 0x00FF00FF00FF00FFL;
+		x2 &= 0x00FF00FF00FF00FFL;
+		x3 &= 0x00FF00FF00FF00FFL;
+		q[q0] = x0 | (x2 << 8);
+		q[q1] = x1 | (x3 << 8);
+	}
+
+	private static void interleaveOut(int[] w, int off, long q0, long q1) {
+		long x0 = q0 & 0x00FF00FF00FF00FFL;
+		long x1 = q1 & 0x00FF00FF00FF00FFL;
+		long x2 = (q0 >>> 8) & 0x00FF00FF00FF00FFL;
+		long x3 = (q1 >>> 8) & 0x00FF00FF00FF00FFL;
+		x0 |= (x0 >>> 8);
+		x1 |= (x1 >>> 8);
+		x2 |= (x2 >>> 8);
+		x3 |= (x3 >>> 8);
+		x0 &= 0x0000FFFF0000FFFFL;
+		x1 &= 0x0000FFFF0000FFFFL;
+		x2 &= 0x0000FFFF0000FFFFL;
+		x3 &= 0x0000FFFF0000FFFFL;
+		w[off] = (int)x0 | (int)(x0 >>> 16);
+		w[off + 1] = (int)x1 | (int)(x1 >>> 16);
+		w[off + 2] = (int)x2 | (int)(x2 >>> 16);
+		w[off + 3] = (int)x3 | (int)(x3 >>> 16);
+	}
+
+	private static int subWord(int x) {
+		long[] q = new long[8];
+		q[0] = x & 0xFFFFFFFFL;
+		ortho(q);
+		sbox(q);
+		ortho(q);
+		return (int)q[0];
+	}
+
+	private static int decodeIntLE(byte[] b, int off) {
+		return (b[off] & 0xff) | ((b[off + 1] & 0xff) << 8) | ((b[off + 2] & 0xff) << 16) | (b[off + 3] << 24);
+	}
+
+	private static void encodeIntLE(byte[] b, int off, int v) {
+		b[off] = (byte)v;
+		b[off + 1] = (byte)(v >>> 8);
+		b[off + 2] = (byte)(v >>> 16);
+		b[off + 3] = (byte)(v >>> 24);
+	}
+
+}
@@ -0,0 +1,64 @@
+/*
+* Copyright 2010 Srikanth Reddy Lingala  
+* 
+* Licensed under the Apache License, Version 2.0 (the "License"); 
+* you may not use this file except in compliance with the License. 
+* You may obtain a copy of the License at 
+* 
+* http://www.apache.org/licenses/LICENSE-2.0 
+* 
+* Unless required by applicable law or agreed to in writing, 
+* software distributed under the License is distributed on an "AS IS" BASIS, 
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+* See the License for the specific language governing permissions and 
+* limitations under the License. 
+*/
+
+package net.lingala.zip4j.crypto;
+
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.SecretKeySpec;
+
+import net.lingala.zip4j.util.InternalZipConstants;
+import net.lingala.zip4j.util.Raw;
+
+/**
+ * Keystream generator backed by the JCA "AES/ECB/NoPadding" cipher. Counter
+ * blocks are laid out in bulk and encrypted with a single update call, which
+ * lets the JIT use the AES intrinsics where the CPU has them.
+ */
+public class CipherKeystreamGenerator implements IKeystreamGenerator {
+	
+	private Cipher cipher;
+	private byte[] counterBlocks;
+	
+	public CipherKeystreamGenerator(byte[] key) {
+		try {
+			cipher = Cipher.getInstance("AES/ECB/NoPadding");
+			cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"));
+		} catch (GeneralSecurityException e) {
+			throw new RuntimeException(e);
+		}
+		counterBlocks = new byte[InternalZipConstants.BUFF_SIZE];
+	}
+	
+	public void generate(int nonce, byte[] out, int outOff, int blockCount) {
+		int maxBlocks = counterBlocks.length / InternalZipConstants.AES_BLOCK_SIZE;
+		try {
+			while (blockCount > 0) {
+				int blocks = Math.min(blockCount, maxBlocks);
+				int len = blocks * InternalZipConstants.AES_BLOCK_SIZE;
+				Raw.prepareBuffAESCounterBlocks(counterBlocks, 0, nonce, blocks);
+				cipher.update(counterBlocks, 0, len, out, outOff);
+				nonce += blocks;
+				outOff += len;
+				blockCount -= blocks;
+			}
+		} catch (GeneralSecurityException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+}
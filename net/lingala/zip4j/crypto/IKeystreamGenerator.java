@@ -0,0 +1,35 @@
+/*
+* Copyright 2010 Srikanth Reddy Lingala  
+* 
+* Licensed under the Apache License, Version 2.0 (the "License"); 
+* you may not use this file except in compliance with the License. 
+* You may obtain a copy of the License at 
+* 
+* http://www.apache.org/licenses/LICENSE-2.0 
+* 
+* Unless required by applicable law or agreed to in writing, 
+* software distributed under the License is distributed on an "AS IS" BASIS, 
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+* See the License for the specific language governing permissions and 
+* limitations under the License. 
+*/
+
+package net.lingala.zip4j.crypto;
+
+/**
+ * Source of AES-CTR keystream in the WinZip counter layout
+ * (32 bit little endian nonce, remaining 12 bytes zero)
+ */
+public interface IKeystreamGenerator {
+	
+	/**
+	 * Encrypts blockCount consecutive counter blocks, starting at nonce,
+	 * into out at outOff
+	 * @param nonce
+	 * @param out
+	 * @param outOff
+	 * @param blockCount
+	 */
+	public void generate(int nonce, byte[] out, int outOff, int blockCount);
+	
+}
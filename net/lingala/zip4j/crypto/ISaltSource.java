@@ -0,0 +1,33 @@
+/*
+* Copyright 2010 Srikanth Reddy Lingala  
+* 
+* Licensed under the Apache License, Version 2.0 (the "License"); 
+* you may not use this file except in compliance with the License. 
+* You may obtain a copy of the License at 
+* 
+* http://www.apache.org/licenses/LICENSE-2.0 
+* 
+* Unless required by applicable law or agreed to in writing, 
+* software distributed under the License is distributed on an "AS IS" BASIS, 
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+* See the License for the specific language governing permissions and 
+* limitations under the License. 
+*/
+
+package net.lingala.zip4j.crypto;
+
+/**
+ * Source of random salt bytes for AES key derivation. Implementations
+ * must be safe for use from several threads at once.
+ */
+public interface ISaltSource {
+	
+	/**
+	 * Fills len bytes of salt at off with random bytes
+	 * @param salt
+	 * @param off
+	 * @param len
+	 */
+	public void nextBytes(byte[] salt, int off, int len);
+	
+}
@@ -0,0 +1,159 @@
+/*
+* Copyright 2010 Srikanth Reddy Lingala  
+* 
+* Licensed under the Apache License, Version 2.0 (the "License"); 
+* you may not use this file except in compliance with the License. 
+* You may obtain a copy of the License at 
+* 
+* http://www.apache.org/licenses/LICENSE-2.0 
+* 
+* Unless required by applicable law or agreed to in writing, 
+* software distributed under the License is distributed on an "AS IS" BASIS, 
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+* See the License for the specific language governing permissions and 
+* limitations under the License. 
+*/
+
+package net.lingala.zip4j.crypto;
+
+import java.util.Arrays;
+
+import net.lingala.zip4j.util.InternalZipConstants;
+
+/**
+ * Generates keystream ahead of time on a background thread into a bounded
+ * ring buffer. The CTR keystream does not depend on the data, so it can be
+ * computed while the caller is busy compressing. Blocks must be requested
+ * in counter order, starting at nonce 1.
+ */
+public class KeystreamPrefetcher implements IKeystreamGenerator {
+
+	private final IKeystreamGenerator generator;
+	private final byte[] ring;
+	private final int capacityBlocks;
+	private final Object lock = new Object();
+	private final Thread thread;
+
+	// guarded by lock, all positions in blocks
+	private int readIndex;
+	private int writeIndex;
+	private int available;
+	private int readNonce = 1;
+	private int writeNonce = 1;
+	private boolean running = true;
+	private RuntimeException failure;
+
+	/**
+	 * @param generator generator used by the background thread only
+	 * @param size size of the ring buffer in bytes, rounded down to whole blocks
+	 */
+	public KeystreamPrefetcher(IKeystreamGenerator generator, int size) {
+		if (generator == null) {
+			throw new RuntimeException("keystream generator is null, cannot create prefetcher");
+		}
+		this.generator = generator;
+		this.capacityBlocks = Math.max(1, size / InternalZipConstants.AES_BLOCK_SIZE);
+		this.ring = new byte[capacityBlocks * InternalZipConstants.AES_BLOCK_SIZE];
+
+		thread = new Thread(new Runnable() {
+			public void run() {
+				fill();
+			}
+		}, InternalZipConstants.THREAD_NAME + "-keystream");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private void fill() {
+		int maxStep = Math.max(1, Math.min(capacityBlocks / 2, InternalZipConstants.BUFF_SIZE / InternalZipConstants.AES_BLOCK_SIZE));
+		try {
+			while (true) {
+				int index, nonce, blocks;
+				synchronized (lock) {
+					// one contiguous run of free blocks, without wrapping around the ring
+					while (running && capacityBlocks - available < Math.min(maxStep, capacityBlocks - writeIndex)) {
+						lock.wait();
+					}
+					if (!running) {
+						return;
+					}
+					index = writeIndex;
+					nonce = writeNonce;
+					blocks = Math.min(maxStep, capacityBlocks - index);
+				}
+
+				generator.generate(nonce, ring, index * InternalZipConstants.AES_BLOCK_SIZE, blocks);
+
+				synchronized (lock) {
+					writeIndex = (index + blocks) % capacityBlocks;
+					writeNonce = nonce + blocks;
+					available += blocks;
+					lock.notifyAll();
+				}
+			}
+		} catch (InterruptedException e) {
+			// closed while waiting
+		} catch (RuntimeException e) {
+			synchronized (lock) {
+				failure = e;
+				lock.notifyAll();
+			}
+		}
+	}
+
+	public void generate(int nonce, byte[] out, int outOff, int blockCount) {
+		synchronized (lock) {
+			if (nonce != readNonce) {
+				throw new RuntimeException("keystream prefetcher expects nonce " + readNonce + ", got " + nonce);
+			}
+
+			while (blockCount > 0) {
+				while (available == 0) {
+					if (failure != null) {
+						throw failure;
+					}
+					if (!running) {
+						throw new RuntimeException("keystream prefetcher is closed");
+					}
+					try {
+						lock.wait();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new RuntimeException(e);
+					}
+				}
+
+				int blocks = Math.min(Math.min(blockCount, available), capacityBlocks - readIndex);
+				int len = blocks * InternalZipConstants.AES_BLOCK_SIZE;
+				System.arraycopy(ring, readIndex * InternalZipConstants.AES_BLOCK_SIZE, out, outOff, len);
+
+				readIndex = (readIndex + blocks) % capacityBlocks;
+				readNonce += blocks;
+				available -= blocks;
+				outOff += len;
+				blockCount -= blocks;
+				lock.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Stops the background thread and wipes the keystream that was not used
+	 */
+	public void close() {
+		synchronized (lock) {
+			running = false;
+			lock.notifyAll();
+		}
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		synchronized (lock) {
+			Arrays.fill(ring, (byte)0);
+			available = 0;
+		}
+	}
+
+}
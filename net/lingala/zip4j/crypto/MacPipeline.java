@@ -0,0 +1,185 @@
+/*
+* Copyright 2010 Srikanth Reddy Lingala  
+* 
+* Licensed under the Apache License, Version 2.0 (the "License"); 
+* you may not use this file except in compliance with the License. 
+* You may obtain a copy of the License at 
+* 
+* http://www.apache.org/licenses/LICENSE-2.0 
+* 
+* Unless required by applicable law or agreed to in writing, 
+* software distributed under the License is distributed on an "AS IS" BASIS, 
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+* See the License for the specific language governing permissions and 
+* limitations under the License. 
+*/
+
+package net.lingala.zip4j.crypto;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.LockSupport;
+
+import net.lingala.zip4j.crypto.PBKDF2.MacBasedPRF;
+import net.lingala.zip4j.util.InternalZipConstants;
+
+/**
+ * Feeds ciphertext to the HMAC on a separate thread. Chunks are copied into
+ * a bounded ring of slots, single producer and single consumer, so the
+ * caller can go on compressing and encrypting while the MAC catches up.
+ * The MAC must not be touched by anyone else until finish() returns.
+ */
+public class MacPipeline {
+	
+	private final MacBasedPRF mac;
+	private final byte[][] slots;
+	private final int[] lengths;
+	private final Thread consumer;
+	private volatile Thread producer;
+	
+	// slot sequence numbers, head is written by the consumer only, tail by the producer only
+	private volatile long head;
+	private volatile long tail;
+	private volatile boolean consumerWaiting;
+	private volatile boolean producerWaiting;
+	private volatile boolean finished;
+	private volatile boolean closed;
+	private volatile Throwable failure;
+	
+	/**
+	 * @param mac initialised MAC to feed
+	 * @param size capacity of the ring in bytes, rounded down to whole slots
+	 */
+	public MacPipeline(MacBasedPRF mac, int size) {
+		if (mac == null) {
+			throw new RuntimeException("mac is null, cannot create mac pipeline");
+		}
+		this.mac = mac;
+		int slotCount = Math.max(2, size / InternalZipConstants.BUFF_SIZE);
+		this.slots = new byte[slotCount][InternalZipConstants.BUFF_SIZE];
+		this.lengths = new int[slotCount];
+		
+		consumer = new Thread(new Runnable() {
+			public void run() {
+				consume();
+			}
+		}, InternalZipConstants.THREAD_NAME + "-mac");
+		consumer.setDaemon(true);
+		consumer.start();
+	}
+	
+	/**
+	 * Queues len bytes of ciphertext at off for the MAC. Blocks while the
+	 * ring is full.
+	 */
+	public void update(byte[] b, int off, int len) {
+		while (len > 0) {
+			long t = tail;
+			while (t - head == slots.length) {
+				checkFailure();
+				producer = Thread.currentThread();
+				producerWaiting = true;
+				if (t - head == slots.length) {
+					LockSupport.park(this);
+				}
+				producerWaiting = false;
+			}
+			
+			int slot = (int)(t % slots.length);
+			int n = Math.min(len, slots[slot].length);
+			System.arraycopy(b, off, slots[slot], 0, n);
+			lengths[slot] = n;
+			tail = t + 1;
+			if (consumerWaiting) {
+				LockSupport.unpark(consumer);
+			}
+			
+			off += n;
+			len -= n;
+		}
+	}
+	
+	/**
+	 * Waits until every queued chunk went through the MAC and stops the
+	 * consumer thread. The MAC can be used by the caller afterwards.
+	 */
+	public void finish() {
+		finished = true;
+		LockSupport.unpark(consumer);
+		join();
+		checkFailure();
+	}
+	
+	/**
+	 * Stops the consumer thread without waiting for the queued chunks, and
+	 * wipes the ring
+	 */
+	public void close() {
+		closed = true;
+		finished = true;
+		LockSupport.unpark(consumer);
+		join();
+		for (int i = 0; i < slots.length; i++) {
+			Arrays.fill(slots[i], (byte)0);
+		}
+	}
+	
+	private void consume() {
+		try {
+			while (true) {
+				if (closed) {
+					return;
+				}
+				long h = head;
+				while (h == tail) {
+					if (finished && h == tail) {
+						return;
+					}
+					consumerWaiting = true;
+					if (h == tail && !finished) {
+						LockSupport.park(this);
+					}
+					consumerWaiting = false;
+				}
+				
+				int slot = (int)(h % slots.length);
+				mac.update(slots[slot], 0, lengths[slot]);
+				head = h + 1;
+				if (producerWaiting) {
+					LockSupport.unpark(producer);
+				}
+			}
+		} catch (Throwable e) {
+			failure = e;
+			Thread waiting = producer;
+			if (waiting != null) {
+				LockSupport.unpark(waiting);
+			}
+		}
+	}
+	
+	private void join() {
+		boolean interrupted = false;
+		while (true) {
+			try {
+				consumer.join();
+				break;
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	private void checkFailure() {
+		Throwable e = failure;
+		if (e != null) {
+			if (e instanceof RuntimeException) {
+				throw (RuntimeException)e;
+			}
+			throw new RuntimeException(e);
+		}
+	}
+	
+}
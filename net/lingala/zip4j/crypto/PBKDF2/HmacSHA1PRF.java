@@ -0,0 +1,258 @@
+/*
+* Copyright 2010 Srikanth Reddy Lingala  
+* 
+* Licensed under the Apache License, Version 2.0 (the "License"); 
+* you may not use this file except in compliance with the License. 
+* You may obtain a copy of the License at 
+* 
+* http://www.apache.org/licenses/LICENSE-2.0 
+* 
+* Unless required by applicable law or agreed to in writing, 
+* software distributed under the License is distributed on an "AS IS" BASIS, 
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+* See the License for the specific language governing permissions and 
+* limitations under the License. 
+*/
+
+
+package net.lingala.zip4j.crypto.PBKDF2;
+
+import java.util.Arrays;
+
+/*
+ * HMAC-SHA1 with the inner and outer pad states computed once per key.
+ * PBKDF2 iterations hash a 20 byte digest per step, which always fits in
+ * a single SHA-1 block, so each iteration is exactly two compressions on
+ * preallocated int state.
+ */
+
+public class HmacSHA1PRF implements PRF
+{
+    private static final int H_LEN = 20;
+
+    private static final int BLOCK_LEN = 64;
+
+    private static final int[] IV = { 0x67452301, 0xEFCDAB89, 0x98BADCFE, 0x10325476, 0xC3D2E1F0 };
+
+    private int[] ipadState = new int[5];
+
+    private int[] opadState = new int[5];
+
+    // scratch state, reused by every call
+    private int[] w = new int[80];
+
+    private int[] h = new int[5];
+
+    private int[] u = new int[5];
+
+    private int[] t = new int[5];
+
+    private byte[] block = new byte[BLOCK_LEN];
+
+    public void init(byte[] P)
+    {
+        byte[] key = P;
+        if (key.length > BLOCK_LEN)
+        {
+            int[] keyHash = new int[5];
+            hash(IV, 0, key, 0, key.length, keyHash);
+            key = new byte[H_LEN];
+            wordsToBytes(keyHash, key, 0);
+        }
+
+        padState(key, (byte) 0x36, ipadState);
+        padState(key, (byte) 0x5c, opadState);
+        Arrays.fill(block, (byte) 0);
+    }
+
+    private void padState(byte[] key, byte pad, int[] state)
+    {
+        for (int i = 0; i < BLOCK_LEN; i++)
+        {
+            block[i] = (byte) ((i < key.length ? key[i] : 0) ^ pad);
+        }
+        System.arraycopy(IV, 0, state, 0, 5);
+        bytesToWords(block, 0, w, 16);
+        compress(state, w);
+    }
+
+    /**
+     * Copies the five words of the inner and outer pad states
+     */
+    void getPadStates(int[] ipad, int[] opad)
+    {
+        System.arraycopy(ipadState, 0, ipad, 0, 5);
+        System.arraycopy(opadState, 0, opad, 0, 5);
+    }
+
+    public byte[] doFinal(byte[] M)
+    {
+        hmac(M, 0, M.length, u);
+        byte[] r = new byte[H_LEN];
+        wordsToBytes(u, r, 0);
+        return r;
+    }
+
+    public int getHLen()
+    {
+        return H_LEN;
+    }
+
+    /**
+     * PBKDF2 function F for one block index, written to dest at offset
+     */
+    void F(byte[] dest, int offset, byte[] S, int c, int blockIndex)
+    {
+        // U1 = PRF(P, S || INT(i))
+        byte[] U_1 = new byte[S.length + 4];
+        System.arraycopy(S, 0, U_1, 0, S.length);
+        U_1[S.length] = (byte) (blockIndex >>> 24);
+        U_1[S.length + 1] = (byte) (blockIndex >>> 16);
+        U_1[S.length + 2] = (byte) (blockIndex >>> 8);
+        U_1[S.length + 3] = (byte) blockIndex;
+        hmac(U_1, 0, U_1.length, u);
+        System.arraycopy(u, 0, t, 0, 5);
+
+        for (int i = 1; i < c; i++)
+        {
+            // inner hash of ipad || U, then outer hash of opad || inner
+            hashDigestBlock(ipadState, u, u);
+            hashDigestBlock(opadState, u, u);
+            t[0] ^= u[0];
+            t[1] ^= u[1];
+            t[2] ^= u[2];
+            t[3] ^= u[3];
+            t[4] ^= u[4];
+        }
+        wordsToBytes(t, dest, offset);
+    }
+
+    private void hmac(byte[] M, int off, int len, int[] out)
+    {
+        hash(ipadState, BLOCK_LEN, M, off, len, h);
+        hashDigestBlock(opadState, h, out);
+    }
+
+    /**
+     * Hashes a 20 byte digest that follows one already compressed 64 byte block
+     */
+    private void hashDigestBlock(int[] state, int[] digest, int[] out)
+    {
+        w[0] = digest[0];
+        w[1] = digest[1];
+        w[2] = digest[2];
+        w[3] = digest[3];
+        w[4] = digest[4];
+        w[5] = 0x80000000;
+        for (int i = 6; i < 15; i++)
+        {
+            w[i] = 0;
+        }
+        w[15] = (BLOCK_LEN + H_LEN) * 8;
+        out[0] = state[0];
+        out[1] = state[1];
+        out[2] = state[2];
+        out[3] = state[3];
+        out[4] = state[4];
+        compress(out, w);
+    }
+
+    /**
+     * General SHA-1 continuing from state after prefixLen bytes of input
+     */
+    private void hash(int[] state, long prefixLen, byte[] M, int off, int len, int[] out)
+    {
+        System.arraycopy(state, 0, out, 0, 5);
+        int end = off + len;
+        while (end - off >= BLOCK_LEN)
+        {
+            bytesToWords(M, off, w, 16);
+            compress(out, w);
+            off += BLOCK_LEN;
+        }
+
+        int rem = end - off;
+        System.arraycopy(M, off, block, 0, rem);
+        block[rem] = (byte) 0x80;
+        for (int i = rem + 1; i < BLOCK_LEN; i++)
+        {
+            block[i] = 0;
+        }
+        if (rem + 1 > BLOCK_LEN - 8)
+        {
+            bytesToWords(block, 0, w, 16);
+            compress(out, w);
+            Arrays.fill(block, (byte) 0);
+        }
+        long bitLen = (prefixLen + len) * 8;
+        for (int i = 0; i < 8; i++)
+        {
+            block[BLOCK_LEN - 1 - i] = (byte) (bitLen >>> (8 * i));
+        }
+        bytesToWords(block, 0, w, 16);
+        compress(out, w);
+    }
+
+    private static void compress(int[] state, int[] w)
+    {
+        for (int i = 16; i < 80; i++)
+        {
+            int x = w[i - 3] ^ w[i - 8] ^ w[i - 14] ^ w[i - 16];
+            w[i] = (x << 1) | (x >>> 31);
+        }
+
+        int a = state[0];
+        int b = state[1];
+        int c = state[2];
+        int d = state[3];
+        int e = state[4];
+
+        for (int i = 0; i < 20; i++)
+        {
+            int tmp = ((a << 5) | (a >>> 27)) + ((b & c) | (~b & d)) + e + 0x5A827999 + w[i];
+            e = d; d = c; c = (b << 30) | (b >>> 2); b = a; a = tmp;
+        }
+        for (int i = 20; i < 40; i++)
+        {
+            int tmp = ((a << 5) | (a >>> 27)) + (b ^ c ^ d) + e + 0x6ED9EBA1 + w[i];
+            e = d; d = c; c = (b << 30) | (b >>> 2); b = a; a = tmp;
+        }
+        for (int i = 40; i < 60; i++)
+        {
+            int tmp = ((a << 5) | (a >>> 27)) + ((b & c) | (b & d) | (c & d)) + e + 0x8F1BBCDC + w[i];
+            e = d; d = c; c = (b << 30) | (b >>> 2); b = a; a = tmp;
+        }
+        for (int i = 60; i < 80; i++)
+        {
+            int tmp = ((a << 5) | (a >>> 27)) + (b ^ c ^ d) + e + 0xCA62C1D6 + w[i];
+            e = d; d = c; c = (b << 30) | (b >>> 2); b = a; a = tmp;
+        }
+
+        state[0] += a;
+        state[1] += b;
+        state[2] += c;
+        state[3] += d;
+        state[4] += e;
+    }
+
+    private static void bytesToWords(byte[] src, int off, int[] dest, int count)
+    {
+        for (int i = 0; i < count; i++)
+        {
+            int p = off + i * 4;
+            dest[i] = (src[p] << 24) | ((src[p + 1] & 0xff) << 16) | ((src[p + 2] & 0xff) << 8) | (src[p + 3] & 0xff);
+        }
+    }
+
+    private static void wordsToBytes(int[] src, byte[] dest, int off)
+    {
+        for (int i = 0; i < 5; i++)
+        {
+            int p = off + i * 4;
+            dest[p] = (byte) (src[i] >>> 24);
+            dest[p + 1] = (byte) (src[i] >>> 16);
+            dest[p + 2] = (byte) (src[i] >>> 8);
+            dest[p + 3] = (byte) src[i];
+        }
+    }
+}
@@ -36,18 +36,14 @@ public class MacBasedPRF implements PRF
 
   private String macAlgorithm;
 
+  private boolean cached;
+
     public MacBasedPRF(String macAlgorithm)
     {
         this.macAlgorithm = macAlgorithm;
-        try
-        {
-            mac = Mac.getInstance(macAlgorithm);
-            hLen = mac.getMacLength();
-        }
-        catch (NoSuchAlgorithmException e)
-        {
-            throw new RuntimeException(e);
-        }
+        mac = MacCache.borrow(macAlgorithm);
+        hLen = mac.getMacLength();
+        cached = true;
     }
 
     public MacBasedPRF(String macAlgorithm, String provider)
@@ -113,4 +109,17 @@ public class MacBasedPRF implements PRF
 			throw new RuntimeException(e);
 		}
     }
+
+    /**
+     * Returns the underlying Mac to MacCache, if it came from there. The PRF
+     * cannot be used afterwards.
+     */
+    public void release()
+    {
+        if (cached)
+        {
+            MacCache.release(mac, macAlgorithm);
+        }
+        mac = null;
+    }
 }
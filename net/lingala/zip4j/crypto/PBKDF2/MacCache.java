@@ -0,0 +1,109 @@
+/*
+* Copyright 2010 Srikanth Reddy Lingala
+*
+* Licensed under the Apache License, Version 2.0 (the "License");
+* you may not use this file except in compliance with the License.
+* You may obtain a copy of the License at
+*
+* http://www.apache.org/licenses/LICENSE-2.0
+*
+* Unless required by applicable law or agreed to in writing,
+* software distributed under the License is distributed on an "AS IS" BASIS,
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+* See the License for the specific language governing permissions and
+* limitations under the License.
+*/
+
+package net.lingala.zip4j.crypto.PBKDF2;
+
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Per-thread cache of Mac instances, so that setting up a stream does not go
+ * through the provider lookup every time. A Mac is returned to the cache of
+ * the thread that releases it.
+ */
+public class MacCache
+{
+    // per thread and algorithm, a stream needs at most a couple at a time
+    private static final int MAX_CACHED = 4;
+
+    private static final byte[] BLANK_KEY = new byte[1];
+
+    private static final ThreadLocal<Map<String, ArrayDeque<Mac>>> CACHE =
+        new ThreadLocal<Map<String, ArrayDeque<Mac>>>()
+        {
+            protected Map<String, ArrayDeque<Mac>> initialValue()
+            {
+                return new HashMap<String, ArrayDeque<Mac>>();
+            }
+        };
+
+    private MacCache()
+    {
+    }
+
+    /**
+     * Returns a cached Mac for the algorithm, or a new one if this thread has
+     * none. The Mac must be initialised with a key before use.
+     */
+    public static Mac borrow(String macAlgorithm)
+    {
+        ArrayDeque<Mac> macs = CACHE.get().get(macAlgorithm);
+        if (macs != null)
+        {
+            Mac mac = macs.pollFirst();
+            if (mac != null)
+            {
+                return mac;
+            }
+        }
+        try
+        {
+            return Mac.getInstance(macAlgorithm);
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Hands a Mac obtained from borrow back to the cache. The key is replaced
+     * with a blank one first, so no key material stays behind in the cache.
+     */
+    public static void release(Mac mac, String macAlgorithm)
+    {
+        if (mac == null)
+        {
+            return;
+        }
+        try
+        {
+            mac.init(new SecretKeySpec(BLANK_KEY, macAlgorithm));
+        }
+        catch (InvalidKeyException e)
+        {
+            // cannot be wiped, drop it
+            return;
+        }
+        Map<String, ArrayDeque<Mac>> cache = CACHE.get();
+        ArrayDeque<Mac> macs = cache.get(macAlgorithm);
+        if (macs == null)
+        {
+            macs = new ArrayDeque<Mac>(MAX_CACHED);
+            cache.put(macAlgorithm, macs);
+        }
+        if (macs.size() < MAX_CACHED)
+        {
+            macs.addFirst(mac);
+        }
+    }
+}
@@ -0,0 +1,260 @@
+/*
+* Copyright 2010 Srikanth Reddy Lingala  
+* 
+* Licensed under the Apache License, Version 2.0 (the "License"); 
+* you may not use this file except in compliance with the License. 
+* You may obtain a copy of the License at 
+* 
+* http://www.apache.org/licenses/LICENSE-2.0 
+* 
+* Unless required by applicable law or agreed to in writing, 
+* software distributed under the License is distributed on an "AS IS" BASIS, 
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+* See the License for the specific language governing permissions and 
+* limitations under the License. 
+*/
+
+package net.lingala.zip4j.crypto.PBKDF2;
+
+import java.util.Arrays;
+
+import net.lingala.zip4j.util.Raw;
+
+/*
+ * PBKDF2 with HMAC-SHA1 for many (password, salt) pairs at once. Every
+ * output block of every key is an independent chain of SHA-1 compressions,
+ * so two chains are advanced together, their rounds interleaved in one loop.
+ * A single chain is bound by the latency of each round; two independent ones
+ * fill the execution ports the other leaves idle. More lanes run out of
+ * registers and end up slower.
+ */
+
+public class MultiBufferPBKDF2
+{
+    private static final int H_LEN = 20;
+
+    private static final int BLOCK_LEN = 64;
+
+    private final int[] ipad0 = new int[5];
+
+    private final int[] opad0 = new int[5];
+
+    private final int[] ipad1 = new int[5];
+
+    private final int[] opad1 = new int[5];
+
+    private final int[] u0 = new int[5];
+
+    private final int[] u1 = new int[5];
+
+    private final int[] t0 = new int[5];
+
+    private final int[] t1 = new int[5];
+
+    private final int[] w0 = new int[80];
+
+    private final int[] w1 = new int[80];
+
+    private final HmacSHA1PRF prf = new HmacSHA1PRF();
+
+    private MultiBufferPBKDF2()
+    {
+    }
+
+    /**
+     * Derives one key per (password, salt) pair
+     * 
+     * @param passwords
+     * @param salts one salt per password
+     * @param iterationCount
+     * @param dkLen length of every derived key
+     * @return the derived keys, in the order of the passwords
+     */
+    public static byte[][] deriveKeys(char[][] passwords, byte[][] salts, int iterationCount, int dkLen)
+    {
+        if (passwords == null || salts == null || passwords.length != salts.length)
+        {
+            throw new IllegalArgumentException("one salt is needed per password");
+        }
+        if (iterationCount < 1 || dkLen < 1)
+        {
+            throw new IllegalArgumentException("invalid iteration count or key length");
+        }
+
+        byte[][] keys = new byte[passwords.length][];
+        int blocksPerKey = (dkLen + H_LEN - 1) / H_LEN;
+        int jobs = passwords.length * blocksPerKey;
+        byte[] T = new byte[jobs * H_LEN];
+        MultiBufferPBKDF2 engine = new MultiBufferPBKDF2();
+        for (int job = 0; job < jobs; job += 2)
+        {
+            // an odd job out runs in both lanes
+            int other = Math.min(job + 1, jobs - 1);
+            engine.init(passwords, salts, blocksPerKey, job, engine.ipad0, engine.opad0, engine.u0);
+            engine.init(passwords, salts, blocksPerKey, other, engine.ipad1, engine.opad1, engine.u1);
+            engine.F(iterationCount);
+            wordsToBytes(engine.t0, T, job * H_LEN);
+            wordsToBytes(engine.t1, T, other * H_LEN);
+        }
+
+        for (int k = 0; k < passwords.length; k++)
+        {
+            keys[k] = Arrays.copyOfRange(T, k * blocksPerKey * H_LEN, k * blocksPerKey * H_LEN + dkLen);
+        }
+        Arrays.fill(T, (byte) 0);
+        engine.wipe();
+        return keys;
+    }
+
+    /**
+     * Sets up a lane for job, which is block job % blocksPerKey + 1 of key
+     * job / blocksPerKey: the pad states of its password and U1
+     */
+    private void init(char[][] passwords, byte[][] salts, int blocksPerKey, int job,
+            int[] ipad, int[] opad, int[] u)
+    {
+        int key = job / blocksPerKey;
+        int blockIndex = job % blocksPerKey + 1;
+        byte[] P = Raw.convertCharArrayToByteArray(passwords[key]);
+        byte[] S = salts[key] == null ? new byte[0] : salts[key];
+        prf.init(P);
+        Arrays.fill(P, (byte) 0);
+        prf.getPadStates(ipad, opad);
+
+        // U1 = PRF(P, S || INT(i)), the only step with a variable length message
+        byte[] U_i = new byte[S.length + 4];
+        System.arraycopy(S, 0, U_i, 0, S.length);
+        U_i[S.length] = (byte) (blockIndex >>> 24);
+        U_i[S.length + 1] = (byte) (blockIndex >>> 16);
+        U_i[S.length + 2] = (byte) (blockIndex >>> 8);
+        U_i[S.length + 3] = (byte) blockIndex;
+        byte[] U_1 = prf.doFinal(U_i);
+        for (int i = 0; i < 5; i++)
+        {
+            u[i] = (U_1[i * 4] << 24) | ((U_1[i * 4 + 1] & 0xff) << 16)
+                    | ((U_1[i * 4 + 2] & 0xff) << 8) | (U_1[i * 4 + 3] & 0xff);
+        }
+        Arrays.fill(U_1, (byte) 0);
+    }
+
+    /**
+     * Runs the remaining iterations of both lanes, leaving the output blocks in t0 and t1
+     */
+    private void F(int c)
+    {
+        System.arraycopy(u0, 0, t0, 0, 5);
+        System.arraycopy(u1, 0, t1, 0, 5);
+        for (int i = 1; i < c; i++)
+        {
+            // inner hash of ipad || U, then outer hash of opad || inner
+            hashDigestBlocks(ipad0, ipad1);
+            hashDigestBlocks(opad0, opad1);
+            for (int j = 0; j < 5; j++)
+            {
+                t0[j] ^= u0[j];
+                t1[j] ^= u1[j];
+            }
+        }
+    }
+
+    /**
+     * Replaces u0 and u1 with the hash of the 20 byte digest following one
+     * already compressed 64 byte block, whose states are s0 and s1
+     */
+    private void hashDigestBlocks(int[] s0, int[] s1)
+    {
+        int[] w0 = this.w0;
+        int[] w1 = this.w1;
+        for (int i = 0; i < 5; i++)
+        {
+            w0[i] = u0[i];
+            w1[i] = u1[i];
+        }
+        w0[5] = 0x80000000;
+        w1[5] = 0x80000000;
+        for (int i = 6; i < 15; i++)
+        {
+            w0[i] = 0;
+            w1[i] = 0;
+        }
+        w0[15] = (BLOCK_LEN + H_LEN) * 8;
+        w1[15] = (BLOCK_LEN + H_LEN) * 8;
+        for (int i = 16; i < 80; i++)
+        {
+            int x0 = w0[i - 3] ^ w0[i - 8] ^ w0[i - 14] ^ w0[i - 16];
+            int x1 = w1[i - 3] ^ w1[i - 8] ^ w1[i - 14] ^ w1[i - 16];
+            w0[i] = (x0 << 1) | (x0 >>> 31);
+            w1[i] = (x1 << 1) | (x1 >>> 31);
+        }
+
+        int a0 = s0[0], b0 = s0[1], c0 = s0[2], d0 = s0[3], e0 = s0[4];
+        int a1 = s1[0], b1 = s1[1], c1 = s1[2], d1 = s1[3], e1 = s1[4];
+
+        for (int i = 0; i < 20; i++)
+        {
+            int tmp0 = ((a0 << 5) | (a0 >>> 27)) + ((b0 & c0) | (~b0 & d0)) + e0 + 0x5A827999 + w0[i];
+            int tmp1 = ((a1 << 5) | (a1 >>> 27)) + ((b1 & c1) | (~b1 & d1)) + e1 + 0x5A827999 + w1[i];
+            e0 = d0; d0 = c0; c0 = (b0 << 30) | (b0 >>> 2); b0 = a0; a0 = tmp0;
+            e1 = d1; d1 = c1; c1 = (b1 << 30) | (b1 >>> 2); b1 = a1; a1 = tmp1;
+        }
+        for (int i = 20; i < 40; i++)
+        {
+            int tmp0 = ((a0 << 5) | (a0 >>> 27)) + (b0 ^ c0 ^ d0) + e0 + 0x6ED9EBA1 + w0[i];
+            int tmp1 = ((a1 << 5) | (a1 >>> 27)) + (b1 ^ c1 ^ d1) + e1 + 0x6ED9EBA1 + w1[i];
+            e0 = d0; d0 = c0; c0 = (b0 << 30) | (b0 >>> 2); b0 = a0; a0 = tmp0;
+            e1 = d1; d1 = c1; c1 = (b1 << 30) | (b1 >>> 2); b1 = a1; a1 = tmp1;
+        }
+        for (int i = 40; i < 60; i++)
+        {
+            int tmp0 = ((a0 << 5) | (a0 >>> 27)) + ((b0 & c0) | (b0 & d0) | (c0 & d0)) + e0 + 0x8F1BBCDC + w0[i];
+            int tmp1 = ((a1 << 5) | (a1 >>> 27)) + ((b1 & c1) | (b1 & d1) | (c1 & d1)) + e1 + 0x8F1BBCDC + w1[i];
+            e0 = d0; d0 = c0; c0 = (b0 << 30) | (b0 >>> 2); b0 = a0; a0 = tmp0;
+            e1 = d1; d1 = c1; c1 = (b1 << 30) | (b1 >>> 2); b1 = a1; a1 = tmp1;
+        }
+        for (int i = 60; i < 80; i++)
+        {
+            int tmp0 = ((a0 << 5) | (a0 >>> 27)) + (b0 ^ c0 ^ d0) + e0 + 0xCA62C1D6 + w0[i];
+            int tmp1 = ((a1 << 5) | (a1 >>> 27)) + (b1 ^ c1 ^ d1) + e1 + 0xCA62C1D6 + w1[i];
+            e0 = d0; d0 = c0; c0 = (b0 << 30) | (b0 >>> 2); b0 = a0; a0 = tmp0;
+            e1 = d1; d1 = c1; c1 = (b1 << 30) | (b1 >>> 2); b1 = a1; a1 = tmp1;
+        }
+
+        u0[0] = s0[0] + a0;
+        u0[1] = s0[1] + b0;
+        u0[2] = s0[2] + c0;
+        u0[3] = s0[3] + d0;
+        u0[4] = s0[4] + e0;
+        u1[0] = s1[0] + a1;
+        u1[1] = s1[1] + b1;
+        u1[2] = s1[2] + c1;
+        u1[3] = s1[3] + d1;
+        u1[4] = s1[4] + e1;
+    }
+
+    private static void wordsToBytes(int[] src, byte[] dest, int off)
+    {
+        for (int i = 0; i < 5; i++)
+        {
+            int p = off + i * 4;
+            dest[p] = (byte) (src[i] >>> 24);
+            dest[p + 1] = (byte) (src[i] >>> 16);
+            dest[p + 2] = (byte) (src[i] >>> 8);
+            dest[p + 3] = (byte) src[i];
+        }
+    }
+
+    private void wipe()
+    {
+        prf.init(new byte[0]);
+        Arrays.fill(ipad0, 0);
+        Arrays.fill(opad0, 0);
+        Arrays.fill(ipad1, 0);
+        Arrays.fill(opad1, 0);
+        Arrays.fill(u0, 0);
+        Arrays.fill(u1, 0);
+        Arrays.fill(t0, 0);
+        Arrays.fill(t1, 0);
+        Arrays.fill(w0, 0);
+        Arrays.fill(w1, 0);
+    }
+}
@@ -16,6 +16,13 @@
 
 package net.lingala.zip4j.crypto.PBKDF2;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+
 import net.lingala.zip4j.util.Raw;
 
 /*
@@ -29,6 +36,10 @@ public class PBKDF2Engine
 
   private PRF prf;
 
+  private boolean ownPRF;
+
+  private Executor executor;
+
     public PBKDF2Engine()
     {
         this.parameters = null;
@@ -53,6 +64,16 @@ public class PBKDF2Engine
     }
 
     public byte[] deriveKey(char[] inputPassword, int dkLen)
+    {
+        return deriveKey(inputPassword, 0, dkLen);
+    }
+
+    /**
+     * Derives dkLen bytes of the key starting at offset. Every output block
+     * of PBKDF2 is computed independently, so only the blocks covering the
+     * range are derived.
+     */
+    public byte[] deriveKey(char[] inputPassword, int offset, int dkLen)
     {
         byte[] r = null;
         byte P[] = null;
@@ -60,6 +81,10 @@ public class PBKDF2Engine
         {
             throw new NullPointerException();
         }
+        if (offset < 0)
+        {
+            throw new IllegalArgumentException("negative key offset");
+        }
         
         P = Raw.convertCharArrayToByteArray(inputPassword);
         
@@ -68,8 +93,35 @@ public class PBKDF2Engine
         {
             dkLen = prf.getHLen();
         }
-        r = PBKDF2(prf, parameters.getSalt(), parameters.getIterationCount(),
-                dkLen);
+        int hLen = prf.getHLen();
+        int firstBlock = offset / hLen + 1;
+        int blockCount = ceil(offset + dkLen, hLen) - firstBlock + 1;
+        if (executor != null && ownPRF && blockCount > 1)
+        {
+            r = PBKDF2Parallel(P, parameters.getSalt(), parameters.getIterationCount(),
+                    firstBlock, blockCount);
+        }
+        else
+        {
+            r = PBKDF2(prf, parameters.getSalt(), parameters.getIterationCount(),
+                    firstBlock, blockCount);
+        }
+        if (ownPRF)
+        {
+            // hand a cached Mac back, the next derivation borrows it again
+            releasePRF(prf);
+            prf = null;
+            ownPRF = false;
+        }
+        int skip = offset - (firstBlock - 1) * hLen;
+        if (skip > 0 || r.length > dkLen)
+        {
+            // Incomplete first or last block
+            byte DK[] = new byte[dkLen];
+            System.arraycopy(r, skip, DK, 0, dkLen);
+            Arrays.fill(r, (byte) 0);
+            return DK;
+        }
         return r;
     }
 
@@ -100,38 +152,101 @@ public class PBKDF2Engine
     {
         if (prf == null)
         {
-            prf = new MacBasedPRF(parameters.getHashAlgorithm());
+            prf = createPRF();
+            ownPRF = true;
         }
         prf.init(P);
     }
 
+    private PRF createPRF()
+    {
+        if ("HmacSHA1".equalsIgnoreCase(parameters.getHashAlgorithm()))
+        {
+            return new HmacSHA1PRF();
+        }
+        return new MacBasedPRF(parameters.getHashAlgorithm());
+    }
+
+    private static void releasePRF(PRF prf)
+    {
+        if (prf instanceof MacBasedPRF)
+        {
+            ((MacBasedPRF) prf).release();
+        }
+    }
+
     public PRF getPseudoRandomFunction()
     {
         return prf;
     }
 
-    private static byte[] PBKDF2(PRF prf, byte[] S, int c, int dkLen)
+    private static byte[] PBKDF2(PRF prf, byte[] S, int c, int firstBlock, int blockCount)
     {
         if (S == null)
         {
             S = new byte[0];
         }
         int hLen = prf.getHLen();
-        int l = ceil(dkLen, hLen);
-        int r = dkLen - (l - 1) * hLen;
-        byte T[] = new byte[l * hLen];
+        byte T[] = new byte[blockCount * hLen];
         int ti_offset = 0;
-        for (int i = 1; i <= l; i++)
+        for (int i = firstBlock; i < firstBlock + blockCount; i++)
         {
             _F(T, ti_offset, prf, S, c, i);
             ti_offset += hLen;
         }
-        if (r < hLen)
+        return T;
+    }
+
+    /**
+     * Same as PBKDF2, but the output blocks are computed at the same time, each
+     * with its own PRF instance. The calling thread computes the first block.
+     */
+    private byte[] PBKDF2Parallel(final byte[] P, byte[] S, final int c, final int firstBlock, int blockCount)
+    {
+        final byte[] salt = S == null ? new byte[0] : S;
+        final int hLen = prf.getHLen();
+        final byte T[] = new byte[blockCount * hLen];
+
+        List<FutureTask<Void>> tasks = new ArrayList<>();
+        for (int i = firstBlock + 1; i < firstBlock + blockCount; i++)
         {
-            // Incomplete last block
-            byte DK[] = new byte[dkLen];
-            System.arraycopy(T, 0, DK, 0, dkLen);
-            return DK;
+            final int blockIndex = i;
+            FutureTask<Void> task = new FutureTask<Void>(new Runnable()
+            {
+                public void run()
+                {
+                    PRF blockPRF = createPRF();
+                    try
+                    {
+                        blockPRF.init(P);
+                        _F(T, (blockIndex - firstBlock) * hLen, blockPRF, salt, c, blockIndex);
+                    }
+                    finally
+                    {
+                        releasePRF(blockPRF);
+                    }
+                }
+            }, null);
+            executor.execute(task);
+            tasks.add(task);
+        }
+        _F(T, 0, prf, salt, c, firstBlock);
+
+        for (FutureTask<Void> task : tasks)
+        {
+            try
+            {
+                task.get();
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+            catch (ExecutionException e)
+            {
+                throw new RuntimeException(e.getCause());
+            }
         }
         return T;
     }
@@ -149,6 +264,11 @@ public class PBKDF2Engine
     private static void _F(byte[] dest, int offset, PRF prf, byte[] S, int c,
             int blockIndex)
     {
+        if (prf instanceof HmacSHA1PRF)
+        {
+            ((HmacSHA1PRF) prf).F(dest, offset, S, c, blockIndex);
+            return;
+        }
         int hLen = prf.getHLen();
         byte U_r[] = new byte[hLen];
 
@@ -194,5 +314,21 @@ public class PBKDF2Engine
     public void setPseudoRandomFunction(PRF prf)
     {
         this.prf = prf;
+        this.ownPRF = false;
+    }
+
+    public Executor getExecutor()
+    {
+        return executor;
+    }
+
+    /**
+     * Derives the output blocks in parallel on the given executor, null to
+     * derive them one after another. Only used when the engine creates its
+     * own PRF, as an injected PRF cannot be duplicated per block.
+     */
+    public void setExecutor(Executor executor)
+    {
+        this.executor = executor;
     }
 }
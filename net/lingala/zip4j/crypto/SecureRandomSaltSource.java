@@ -0,0 +1,87 @@
+/*
+* Copyright 2010 Srikanth Reddy Lingala  
+* 
+* Licensed under the Apache License, Version 2.0 (the "License"); 
+* you may not use this file except in compliance with the License. 
+* You may obtain a copy of the License at 
+* 
+* http://www.apache.org/licenses/LICENSE-2.0 
+* 
+* Unless required by applicable law or agreed to in writing, 
+* software distributed under the License is distributed on an "AS IS" BASIS, 
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+* See the License for the specific language governing permissions and 
+* limitations under the License. 
+*/
+
+package net.lingala.zip4j.crypto;
+
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * Salt source backed by a single shared SecureRandom. Each thread takes
+ * random bytes from its own batch, which is refilled from the SecureRandom
+ * when used up, so concurrent streams neither contend nor allocate.
+ */
+public class SecureRandomSaltSource implements ISaltSource {
+	
+	private static final int DEFAULT_BATCH_SIZE = 4096;
+	
+	private final SecureRandom random;
+	private final int batchSize;
+	
+	private final ThreadLocal<Batch> batches = new ThreadLocal<Batch>() {
+		protected Batch initialValue() {
+			return new Batch(batchSize);
+		}
+	};
+	
+	public SecureRandomSaltSource() {
+		this(new SecureRandom(), DEFAULT_BATCH_SIZE);
+	}
+	
+	/**
+	 * @param random shared source of the random bytes
+	 * @param batchSize number of bytes each thread takes from random at a time
+	 */
+	public SecureRandomSaltSource(SecureRandom random, int batchSize) {
+		if (random == null) {
+			throw new RuntimeException("secure random is null, cannot create salt source");
+		}
+		if (batchSize <= 0) {
+			throw new RuntimeException("invalid batch size: " + batchSize);
+		}
+		this.random = random;
+		this.batchSize = batchSize;
+	}
+	
+	public void nextBytes(byte[] salt, int off, int len) {
+		Batch batch = batches.get();
+		while (len > 0) {
+			if (batch.pos == batch.bytes.length) {
+				random.nextBytes(batch.bytes);
+				batch.pos = 0;
+			}
+			int n = Math.min(len, batch.bytes.length - batch.pos);
+			System.arraycopy(batch.bytes, batch.pos, salt, off, n);
+			// handed out bytes are not kept around
+			Arrays.fill(batch.bytes, batch.pos, batch.pos + n, (byte)0);
+			batch.pos += n;
+			off += n;
+			len -= n;
+		}
+	}
+	
+	private static class Batch {
+		final byte[] bytes;
+		int pos;
+		
+		Batch(int size) {
+			bytes = new byte[size];
+			// empty, filled on first use
+			pos = size;
+		}
+	}
+	
+}
@@ -0,0 +1,206 @@
+/*
+* Copyright 2010 Srikanth Reddy Lingala  
+* 
+* Licensed under the Apache License, Version 2.0 (the "License"); 
+* you may not use this file except in compliance with the License. 
+* You may obtain a copy of the License at 
+* 
+* http://www.apache.org/licenses/LICENSE-2.0 
+* 
+* Unless required by applicable law or agreed to in writing, 
+* software distributed under the License is distributed on an "AS IS" BASIS, 
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+* See the License for the specific language governing permissions and 
+* limitations under the License. 
+*/
+
+package net.lingala.zip4j.util;
+
+import java.lang.ref.Cleaner;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+
+/**
+ * Bounded pool of Deflaters, keyed by level, strategy and wrapping. A Deflater
+ * holds about 256 KB of native zlib memory, which otherwise stays allocated
+ * until the garbage collector gets to it. Returned Deflaters are reset and
+ * kept for the next borrower; beyond the bound they are ended at once.
+ * 
+ * Deflaters of streams that are dropped without being closed come back
+ * through a Cleaner, see register.
+ */
+public class DeflaterPool {
+	
+	private static final int DEFAULT_MAX_POOLED_PER_KEY = 8;
+	
+	private static final DeflaterPool DEFAULT = new DeflaterPool(DEFAULT_MAX_POOLED_PER_KEY);
+	
+	// the thread of the Cleaner, to tell reclaimed Deflaters from released ones
+	private static volatile Thread cleanerThread;
+	
+	private static final Cleaner CLEANER = Cleaner.create(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread thread = new Thread(r, InternalZipConstants.THREAD_NAME + "-deflater-cleaner");
+			thread.setDaemon(true);
+			cleanerThread = thread;
+			return thread;
+		}
+	});
+	
+	private final int maxPooledPerKey;
+	private final ConcurrentHashMap<Integer, ArrayBlockingQueue<Deflater>> pools;
+	
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong reclaimed = new AtomicLong();
+	
+	/**
+	 * @param maxPooledPerKey number of idle Deflaters kept per level, strategy and wrapping
+	 */
+	public DeflaterPool(int maxPooledPerKey) {
+		if (maxPooledPerKey < 0) {
+			throw new RuntimeException("invalid deflater pool size: " + maxPooledPerKey);
+		}
+		this.maxPooledPerKey = maxPooledPerKey;
+		this.pools = new ConcurrentHashMap<Integer, ArrayBlockingQueue<Deflater>>();
+	}
+	
+	/**
+	 * @return the pool shared by all zip output streams
+	 */
+	public static DeflaterPool getDefault() {
+		return DEFAULT;
+	}
+	
+	/**
+	 * Returns an idle Deflater for the level, strategy and wrapping, or a new
+	 * one if there is none
+	 * @param level compression level, -1 for the zlib default
+	 * @param strategy one of Deflater.DEFAULT_STRATEGY, FILTERED or HUFFMAN_ONLY
+	 * @param nowrap true for raw deflate without zlib header and checksum
+	 * @return Deflater ready for new input
+	 */
+	public Deflater borrow(int level, int strategy, boolean nowrap) {
+		ArrayBlockingQueue<Deflater> pool = pools.get(key(level, strategy, nowrap));
+		Deflater deflater = pool == null ? null : pool.poll();
+		if (deflater != null) {
+			hits.incrementAndGet();
+			return deflater;
+		}
+		misses.incrementAndGet();
+		deflater = new Deflater(level, nowrap);
+		deflater.setStrategy(strategy);
+		return deflater;
+	}
+	
+	/**
+	 * Hands a Deflater obtained from borrow back. It must not be used by the
+	 * caller afterwards.
+	 */
+	public void release(Deflater deflater, int level, int strategy, boolean nowrap) {
+		if (deflater == null) {
+			return;
+		}
+		if (maxPooledPerKey == 0) {
+			deflater.end();
+			return;
+		}
+		
+		Integer key = key(level, strategy, nowrap);
+		ArrayBlockingQueue<Deflater> pool = pools.get(key);
+		if (pool == null) {
+			ArrayBlockingQueue<Deflater> newPool = new ArrayBlockingQueue<Deflater>(maxPooledPerKey);
+			pool = pools.putIfAbsent(key, newPool);
+			if (pool == null) {
+				pool = newPool;
+			}
+		}
+		
+		deflater.reset();
+		// reset keeps the level and strategy of the last setLevel and setStrategy calls
+		deflater.setLevel(level);
+		deflater.setStrategy(strategy);
+		if (!pool.offer(deflater)) {
+			deflater.end();
+		}
+	}
+	
+	/**
+	 * Releases the Deflater once the owner becomes unreachable without having
+	 * called clean on the returned Cleanable. Calling clean releases it at once.
+	 * @param owner object whose lifetime the Deflater is tied to
+	 * @param deflater Deflater borrowed from this pool
+	 * @return handle to release the Deflater with
+	 */
+	public Cleaner.Cleanable register(Object owner, Deflater deflater, int level, int strategy, boolean nowrap) {
+		return CLEANER.register(owner, new Release(this, deflater, level, strategy, nowrap));
+	}
+	
+	private static Integer key(int level, int strategy, boolean nowrap) {
+		return Integer.valueOf(((level + 1) * 4 + strategy) * 2 + (nowrap ? 1 : 0));
+	}
+	
+	/**
+	 * @return number of borrows served with an idle Deflater
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+	
+	/**
+	 * @return number of borrows that had to create a Deflater
+	 */
+	public long getMisses() {
+		return misses.get();
+	}
+	
+	/**
+	 * @return number of Deflaters released by the Cleaner after their owner was dropped
+	 */
+	public long getReclaimed() {
+		return reclaimed.get();
+	}
+	
+	/**
+	 * @return number of idle Deflaters in the pool
+	 */
+	public int getAvailable() {
+		int available = 0;
+		for (ArrayBlockingQueue<Deflater> pool : pools.values()) {
+			available += pool.size();
+		}
+		return available;
+	}
+	
+	/**
+	 * Cleaner action, must not refer to the owner. Runs once, either from
+	 * clean on the owner's thread or from the Cleaner thread.
+	 */
+	private static class Release implements Runnable {
+		
+		private final DeflaterPool deflaterPool;
+		private final Deflater deflater;
+		private final int level;
+		private final int strategy;
+		private final boolean nowrap;
+		
+		Release(DeflaterPool deflaterPool, Deflater deflater, int level, int strategy, boolean nowrap) {
+			this.deflaterPool = deflaterPool;
+			this.deflater = deflater;
+			this.level = level;
+			this.strategy = strategy;
+			this.nowrap = nowrap;
+		}
+		
+		public void run() {
+			if (Thread.currentThread() == cleanerThread) {
+				deflaterPool.reclaimed.incrementAndGet();
+			}
+			deflaterPool.release(deflater, level, strategy, nowrap);
+		}
+	}
+	
+}
@@ -0,0 +1,359 @@
+/*
+* Copyright 2010 Srikanth Reddy Lingala  
+* 
+* Licensed under the Apache License, Version 2.0 (the "License"); 
+* you may not use this file except in compliance with the License. 
+* You may obtain a copy of the License at 
+* 
+* http://www.apache.org/licenses/LICENSE-2.0 
+* 
+* Unless required by applicable law or agreed to in writing, 
+* software distributed under the License is distributed on an "AS IS" BASIS, 
+* WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. 
+* See the License for the specific language governing permissions and 
+* limitations under the License. 
+*/
+
+package net.lingala.zip4j.util;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+
+import net.lingala.zip4j.model.AESExtraDataRecord;
+import net.lingala.zip4j.model.CentralDirectory;
+import net.lingala.zip4j.model.EndCentralDirRecord;
+import net.lingala.zip4j.model.FileHeader;
+import net.lingala.zip4j.model.LocalFileHeader;
+import net.lingala.zip4j.model.Zip64EndCentralDirLocator;
+import net.lingala.zip4j.model.Zip64EndCentralDirRecord;
+import net.lingala.zip4j.model.Zip64ExtendedInfo;
+import net.lingala.zip4j.model.ZipModel;
+
+/**
+ * Reads the headers of an existing zip file: the end of central directory
+ * record, the zip64 records if present, the central directory and, on
+ * request, the local file header of an entry. Split archives are not supported.
+ */
+public class HeaderReader {
+	
+	private final RandomAccessFile zip4jRaf;
+	private long endCentralDirRecordOffset;
+	
+	public HeaderReader(RandomAccessFile zip4jRaf) {
+		if (zip4jRaf == null) {
+			throw new RuntimeException("input file is null, cannot read headers");
+		}
+		this.zip4jRaf = zip4jRaf;
+	}
+	
+	/**
+	 * Reads all the central headers of the zip file into a zip model
+	 * @return zip model
+	 */
+	public ZipModel readAllHeaders() {
+		try {
+			ZipModel zipModel = new ZipModel();
+			zipModel.setEndCentralDirRecord(readEndOfCentralDirectoryRecord());
+			
+			Zip64EndCentralDirLocator locator = readZip64EndCentralDirLocator();
+			if (locator != null) {
+				zipModel.setZip64Format(true);
+				zipModel.setZip64EndCentralDirLocator(locator);
+				zipModel.setZip64EndCentralDirRecord(readZip64EndCentralDirRec(locator));
+			}
+			
+			zipModel.setCentralDirectory(readCentralDirectory(zipModel));
+			return zipModel;
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	private EndCentralDirRecord readEndOfCentralDirectoryRecord() throws IOException {
+		// the record is at the very end, followed only by a comment of up to 64K
+		long length = zip4jRaf.length();
+		long pos = length - InternalZipConstants.ENDHDR;
+		long lowest = Math.max(0, pos - InternalZipConstants.MAX_ALLOWED_ZIP_COMMENT_LENGTH);
+		byte[] intByte = new byte[4];
+		for (; pos >= lowest; pos--) {
+			zip4jRaf.seek(pos);
+			zip4jRaf.readFully(intByte);
+			if (readIntLittleEndian(intByte, 0) == (int)InternalZipConstants.ENDSIG) {
+				break;
+			}
+		}
+		if (pos < lowest) {
+			throw new RuntimeException("zip headers not found. probably not a zip file");
+		}
+		
+		byte[] ebs = new byte[InternalZipConstants.ENDHDR];
+		zip4jRaf.seek(pos);
+		zip4jRaf.readFully(ebs);
+		
+		EndCentralDirRecord endCentralDirRecord = new EndCentralDirRecord();
+		endCentralDirRecord.setSignature(InternalZipConstants.ENDSIG);
+		endCentralDirRecord.setNoOfThisDisk(readShortLittleEndian(ebs, 4));
+		endCentralDirRecord.setNoOfThisDiskStartOfCentralDir(readShortLittleEndian(ebs, 6));
+		endCentralDirRecord.setTotNoOfEntriesInCentralDirOnThisDisk(readShortLittleEndian(ebs, InternalZipConstants.ENDSUB));
+		endCentralDirRecord.setTotNoOfEntriesInCentralDir(readShortLittleEndian(ebs, InternalZipConstants.ENDTOT));
+		endCentralDirRecord.setSizeOfCentralDir(readIntLittleEndian(ebs, InternalZipConstants.ENDSIZ));
+		endCentralDirRecord.setOffsetOfStartOfCentralDir(readIntLittleEndian(ebs, InternalZipConstants.ENDOFF) & 0xFFFFFFFFL);
+		
+		int commentLength = readShortLittleEndian(ebs, InternalZipConstants.ENDCOM);
+		endCentralDirRecord.setCommentLength(commentLength);
+		if (commentLength > 0) {
+			byte[] commentBytes = new byte[commentLength];
+			zip4jRaf.readFully(commentBytes);
+			endCentralDirRecord.setCommentBytes(commentBytes);
+			endCentralDirRecord.setComment(new String(commentBytes, InternalZipConstants.CHARSET_COMMENTS_DEFAULT));
+		}
+		
+		if (endCentralDirRecord.getNoOfThisDisk() != 0) {
+			throw new RuntimeException("split zip files are not supported");
+		}
+		
+		// remember where the record is, the zip64 locator sits right before it
+		endCentralDirRecordOffset = pos;
+		return endCentralDirRecord;
+	}
+	
+	private Zip64EndCentralDirLocator readZip64EndCentralDirLocator() throws IOException {
+		long pos = endCentralDirRecordOffset - 20;
+		if (pos < 0) {
+			return null;
+		}
+		byte[] lbs = new byte[20];
+		zip4jRaf.seek(pos);
+		zip4jRaf.readFully(lbs);
+		if (readIntLittleEndian(lbs, 0) != (int)InternalZipConstants.ZIP64ENDCENDIRLOC) {
+			return null;
+		}
+		
+		Zip64EndCentralDirLocator locator = new Zip64EndCentralDirLocator();
+		locator.setSignature(InternalZipConstants.ZIP64ENDCENDIRLOC);
+		locator.setNoOfDiskStartOfZip64EndOfCentralDirRec(readIntLittleEndian(lbs, 4));
+		locator.setOffsetZip64EndOfCentralDirRec(readLongLittleEndian(lbs, 8));
+		locator.setTotNumberOfDiscs(readIntLittleEndian(lbs, 16));
+		return locator;
+	}
+	
+	private Zip64EndCentralDirRecord readZip64EndCentralDirRec(Zip64EndCentralDirLocator locator) throws IOException {
+		byte[] rbs = new byte[56];
+		zip4jRaf.seek(locator.getOffsetZip64EndOfCentralDirRec());
+		zip4jRaf.readFully(rbs);
+		if (readIntLittleEndian(rbs, 0) != (int)InternalZipConstants.ZIP64ENDCENDIRREC) {
+			throw new RuntimeException("invalid signature for zip64 end of central directory record");
+		}
+		
+		Zip64EndCentralDirRecord record = new Zip64EndCentralDirRecord();
+		record.setSignature(InternalZipConstants.ZIP64ENDCENDIRREC);
+		record.setSizeOfZip64EndCentralDirRec(readLongLittleEndian(rbs, 4));
+		record.setVersionMadeBy(readShortLittleEndian(rbs, 12));
+		record.setVersionNeededToExtract(readShortLittleEndian(rbs, 14));
+		record.setNoOfThisDisk(readIntLittleEndian(rbs, 16));
+		record.setNoOfThisDiskStartOfCentralDir(readIntLittleEndian(rbs, 20));
+		record.setTotNoOfEntriesInCentralDirOnThisDisk(readLongLittleEndian(rbs, 24));
+		record.setTotNoOfEntriesInCentralDir(readLongLittleEndian(rbs, 32));
+		record.setSizeOfCentralDir(readLongLittleEndian(rbs, 40));
+		record.setOffsetStartCenDirWRTStartDiskNo(readLongLittleEndian(rbs, 48));
+		return record;
+	}
+	
+	private CentralDirectory readCentralDirectory(ZipModel zipModel) throws IOException {
+		long offset = zipModel.getEndCentralDirRecord().getOffsetOfStartOfCentralDir();
+		long entries = zipModel.getEndCentralDirRecord().getTotNoOfEntriesInCentralDir();
+		if (zipModel.isZip64Format()) {
+			offset = zipModel.getZip64EndCentralDirRecord().getOffsetStartCenDirWRTStartDiskNo();
+			entries = zipModel.getZip64EndCentralDirRecord().getTotNoOfEntriesInCentralDir();
+		}
+		
+		CentralDirectory centralDirectory = new CentralDirectory();
+		ArrayList<FileHeader> fileHeaders = new ArrayList<FileHeader>();
+		zip4jRaf.seek(offset);
+		
+		byte[] cbs = new byte[InternalZipConstants.CENHDR];
+		for (long i = 0; i < entries; i++) {
+			zip4jRaf.readFully(cbs);
+			if (readIntLittleEndian(cbs, 0) != (int)InternalZipConstants.CENSIG) {
+				throw new RuntimeException("expected central directory entry not found (#" + (i + 1) + ")");
+			}
+			
+			FileHeader fileHeader = new FileHeader();
+			fileHeader.setSignature((int)InternalZipConstants.CENSIG);
+			fileHeader.setVersionMadeBy(readShortLittleEndian(cbs, InternalZipConstants.CENVEM));
+			fileHeader.setVersionNeededToExtract(readShortLittleEndian(cbs, InternalZipConstants.CENVER));
+			byte[] generalPurposeFlag = new byte[2];
+			System.arraycopy(cbs, InternalZipConstants.CENFLG, generalPurposeFlag, 0, 2);
+			fileHeader.setGeneralPurposeFlag(generalPurposeFlag);
+			fileHeader.setEncrypted((generalPurposeFlag[0] & 1) != 0);
+			fileHeader.setDataDescriptorExists((generalPurposeFlag[0] & 8) != 0);
+			fileHeader.setFileNameUTF8Encoded((generalPurposeFlag[1] & 8) != 0);
+			fileHeader.setCompressionMethod(readShortLittleEndian(cbs, InternalZipConstants.CENHOW));
+			fileHeader.setLastModFileTime(readIntLittleEndian(cbs, InternalZipConstants.CENTIM));
+			fileHeader.setCrc32(readIntLittleEndian(cbs, InternalZipConstants.CENCRC) & 0xFFFFFFFFL);
+			fileHeader.setCompressedSize(readIntLittleEndian(cbs, InternalZipConstants.CENSIZ) & 0xFFFFFFFFL);
+			fileHeader.setUncompressedSize(readIntLittleEndian(cbs, InternalZipConstants.CENLEN) & 0xFFFFFFFFL);
+			int fileNameLength = readShortLittleEndian(cbs, InternalZipConstants.CENNAM);
+			int extraFieldLength = readShortLittleEndian(cbs, InternalZipConstants.CENEXT);
+			int fileCommentLength = readShortLittleEndian(cbs, InternalZipConstants.CENCOM);
+			fileHeader.setFileNameLength(fileNameLength);
+			fileHeader.setExtraFieldLength(extraFieldLength);
+			fileHeader.setFileCommentLength(fileCommentLength);
+			fileHeader.setDiskNumberStart(readShortLittleEndian(cbs, InternalZipConstants.CENDSK));
+			byte[] internalFileAttr = new byte[2];
+			System.arraycopy(cbs, InternalZipConstants.CENATT, internalFileAttr, 0, 2);
+			fileHeader.setInternalFileAttr(internalFileAttr);
+			byte[] externalFileAttr = new byte[4];
+			System.arraycopy(cbs, InternalZipConstants.CENATX, externalFileAttr, 0, 4);
+			fileHeader.setExternalFileAttr(externalFileAttr);
+			fileHeader.setOffsetLocalHeader(readIntLittleEndian(cbs, InternalZipConstants.CENOFF) & 0xFFFFFFFFL);
+			
+			byte[] fileNameBytes = new byte[fileNameLength];
+			zip4jRaf.readFully(fileNameBytes);
+			fileHeader.setFileName(decodeFileName(fileNameBytes, fileHeader.isFileNameUTF8Encoded()));
+			
+			byte[] extraField = new byte[extraFieldLength];
+			zip4jRaf.readFully(extraField);
+			readExtraRecords(fileHeader, extraField);
+			
+			if (fileCommentLength > 0) {
+				byte[] fileCommentBytes = new byte[fileCommentLength];
+				zip4jRaf.readFully(fileCommentBytes);
+				fileHeader.setFileComment(new String(fileCommentBytes, InternalZipConstants.CHARSET_COMMENTS_DEFAULT));
+			}
+			
+			if (fileHeader.isEncrypted() && fileHeader.getAesExtraDataRecord() != null) {
+				fileHeader.setEncryptionMethod(Zip4jConstants.ENC_METHOD_AES);
+			}
+			
+			fileHeaders.add(fileHeader);
+		}
+		
+		centralDirectory.setFileHeaders(fileHeaders);
+		return centralDirectory;
+	}
+	
+	/**
+	 * Picks the zip64 and AES records out of the extra field, other records are skipped
+	 */
+	private static void readExtraRecords(FileHeader fileHeader, byte[] extraField) {
+		int pos = 0;
+		while (pos + 4 <= extraField.length) {
+			int header = readShortLittleEndian(extraField, pos);
+			int size = readShortLittleEndian(extraField, pos + 2);
+			int data = pos + 4;
+			if (data + size > extraField.length) {
+				break;
+			}
+			
+			if (header == InternalZipConstants.EXTRAFIELDZIP64LENGTH) {
+				// only the values that overflowed the 32 bit fields are present, in this order
+				Zip64ExtendedInfo zip64ExtendedInfo = new Zip64ExtendedInfo();
+				zip64ExtendedInfo.setHeader(header);
+				zip64ExtendedInfo.setSize(size);
+				int p = data;
+				if (fileHeader.getUncompressedSize() == InternalZipConstants.ZIP_64_LIMIT && p + 8 <= data + size) {
+					fileHeader.setUncompressedSize(readLongLittleEndian(extraField, p));
+					zip64ExtendedInfo.setUnCompressedSize(fileHeader.getUncompressedSize());
+					p += 8;
+				}
+				if (fileHeader.getCompressedSize() == InternalZipConstants.ZIP_64_LIMIT && p + 8 <= data + size) {
+					fileHeader.setCompressedSize(readLongLittleEndian(extraField, p));
+					zip64ExtendedInfo.setCompressedSize(fileHeader.getCompressedSize());
+					p += 8;
+				}
+				if (fileHeader.getOffsetLocalHeader() == InternalZipConstants.ZIP_64_LIMIT && p + 8 <= data + size) {
+					fileHeader.setOffsetLocalHeader(readLongLittleEndian(extraField, p));
+					zip64ExtendedInfo.setOffsetLocalHeader(fileHeader.getOffsetLocalHeader());
+					p += 8;
+				}
+				fileHeader.setZip64ExtendedInfo(zip64ExtendedInfo);
+			} else if (header == InternalZipConstants.AESSIG && size >= 7) {
+				AESExtraDataRecord aesExtraDataRecord = new AESExtraDataRecord();
+				aesExtraDataRecord.setSignature(InternalZipConstants.AESSIG);
+				aesExtraDataRecord.setDataSize(size);
+				aesExtraDataRecord.setVersionNumber(readShortLittleEndian(extraField, data));
+				aesExtraDataRecord.setVendorID(new String(extraField, data + 2, 2));
+				aesExtraDataRecord.setAesStrength(extraField[data + 4] & 0xFF);
+				aesExtraDataRecord.setCompressionMethod(readShortLittleEndian(extraField, data + 5));
+				fileHeader.setAesExtraDataRecord(aesExtraDataRecord);
+			}
+			
+			pos = data + size;
+		}
+	}
+	
+	/**
+	 * Reads the local file header of an entry, to find where its data starts
+	 * @param fileHeader central directory entry
+	 * @return local file header
+	 */
+	public LocalFileHeader readLocalFileHeader(FileHeader fileHeader) {
+		if (fileHeader == null) {
+			throw new RuntimeException("file header is null, cannot read local file header");
+		}
+		
+		try {
+			byte[] lbs = new byte[InternalZipConstants.LOCHDR];
+			zip4jRaf.seek(fileHeader.getOffsetLocalHeader());
+			zip4jRaf.readFully(lbs);
+			if (readIntLittleEndian(lbs, 0) != (int)InternalZipConstants.LOCSIG) {
+				throw new RuntimeException("invalid local header signature for file: " + fileHeader.getFileName());
+			}
+			
+			LocalFileHeader localFileHeader = new LocalFileHeader();
+			localFileHeader.setSignature((int)InternalZipConstants.LOCSIG);
+			localFileHeader.setVersionNeededToExtract(readShortLittleEndian(lbs, InternalZipConstants.LOCVER));
+			byte[] generalPurposeFlag = new byte[2];
+			System.arraycopy(lbs, InternalZipConstants.LOCFLG, generalPurposeFlag, 0, 2);
+			localFileHeader.setGeneralPurposeFlag(generalPurposeFlag);
+			localFileHeader.setEncrypted((generalPurposeFlag[0] & 1) != 0);
+			localFileHeader.setDataDescriptorExists((generalPurposeFlag[0] & 8) != 0);
+			localFileHeader.setFileNameUTF8Encoded((generalPurposeFlag[1] & 8) != 0);
+			localFileHeader.setCompressionMethod(readShortLittleEndian(lbs, InternalZipConstants.LOCHOW));
+			localFileHeader.setLastModFileTime(readIntLittleEndian(lbs, InternalZipConstants.LOCTIM));
+			// sizes and crc are taken from the central directory, the local ones may be deferred to a data descriptor
+			localFileHeader.setCrc32(fileHeader.getCrc32());
+			localFileHeader.setCompressedSize(fileHeader.getCompressedSize());
+			localFileHeader.setUncompressedSize(fileHeader.getUncompressedSize());
+			int fileNameLength = readShortLittleEndian(lbs, InternalZipConstants.LOCNAM);
+			int extraFieldLength = readShortLittleEndian(lbs, InternalZipConstants.LOCEXT);
+			localFileHeader.setFileNameLength(fileNameLength);
+			localFileHeader.setExtraFieldLength(extraFieldLength);
+			localFileHeader.setFileName(fileHeader.getFileName());
+			localFileHeader.setEncryptionMethod(fileHeader.getEncryptionMethod());
+			localFileHeader.setAesExtraDataRecord(fileHeader.getAesExtraDataRecord());
+			localFileHeader.setOffsetStartOfData(fileHeader.getOffsetLocalHeader() + InternalZipConstants.LOCHDR
+					+ fileNameLength + extraFieldLength);
+			return localFileHeader;
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	private static String decodeFileName(byte[] fileNameBytes, boolean isUTF8) {
+		try {
+			if (isUTF8) {
+				return new String(fileNameBytes, InternalZipConstants.CHARSET_UTF8);
+			}
+			return new String(fileNameBytes, InternalZipConstants.CHARSET_CP850);
+		} catch (UnsupportedEncodingException e) {
+			return new String(fileNameBytes);
+		}
+	}
+	
+	private static int readShortLittleEndian(byte[] b, int off) {
+		return (b[off] & 0xFF) | ((b[off + 1] & 0xFF) << 8);
+	}
+	
+	private static int readIntLittleEndian(byte[] b, int off) {
+		return (b[off] & 0xFF) | ((b[off + 1] & 0xFF) << 8) | ((b[off + 2] & 0xFF) << 16) | ((b[off + 3] & 0xFF) << 24);
+	}
+	
+	private static long readLongLittleEndian(byte[] b, int off) {
+		return (readIntLittleEndian(b, off) & 0xFFFFFFFFL) | ((long)readIntLittleEndian(b, off + 4) << 32);
+	}
+	
+}
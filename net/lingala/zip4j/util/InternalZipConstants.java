@@ -96,6 +96,16 @@ public interface InternalZipConstants {
     //AES Constants
     static final int AES_AUTH_LENGTH = 10;
     static final int AES_BLOCK_SIZE = 16;
+    // smallest slice of a write handed to a worker in parallel AES encryption (16 KB)
+    static final int AES_MIN_PARALLEL_SEGMENT_BLOCKS = 1024;
+    
+    //Parallel deflate, input block size (128 KB) and deflate window size (32 KB)
+    static final int PARALLEL_DEFLATE_BLOCK_SIZE = 128 * 1024;
+    static final int DEFLATE_DICTIONARY_SIZE = 32 * 1024;
+    
+    //Adaptive compression, input sampled before choosing the method and prefix of it trial deflated
+    static final int ADAPTIVE_SAMPLE_SIZE = 64 * 1024;
+    static final int ADAPTIVE_TRIAL_SIZE = 32 * 1024;
     
     static final int MIN_SPLIT_LENGTH = 65536;
     
@@ -115,6 +125,8 @@ public interface InternalZipConstants {
 	
 	public static final int BUFF_SIZE = 1024 * 4;
 	
+	public static final int INPUT_BUFF_SIZE = 1024 * 8;
+	
 	public static final int FILE_MODE_NONE = 0;
 	
 	public static final int FILE_MODE_READ_ONLY = 1;
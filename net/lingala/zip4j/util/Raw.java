@@ -16,9 +16,15 @@
 
 package net.lingala.zip4j.util;
 
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
 public class Raw
 {
 	
+	private static final VarHandle LONG_LANES = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.nativeOrder());
+	
 	public static final void writeShortLittleEndian(byte[] array, int pos,
 			short value) {
 		array[pos +1] = (byte) (value >>> 8);
@@ -94,6 +100,51 @@ public class Raw
 		buff[15] = 0;
 	}
 	
+	/**
+	 * Lays out blockCount consecutive AES counter blocks, starting at nonce,
+	 * in the same format as prepareBuffAESIVBytes
+	 * @param buff
+	 * @param off
+	 * @param nonce
+	 * @param blockCount
+	 */
+	public static void prepareBuffAESCounterBlocks(byte[] buff, int off, int nonce, int blockCount) {
+		for (int i = 0; i < blockCount; i++) {
+			int pos = off + (i << 4);
+			buff[pos] = (byte)nonce;
+			buff[pos + 1] = (byte)(nonce >> 8);
+			buff[pos + 2] = (byte)(nonce >> 16);
+			buff[pos + 3] = (byte)(nonce >> 24);
+			for (int j = 4; j < 16; j++) {
+				buff[pos + j] = 0;
+			}
+			nonce++;
+		}
+	}
+	
+	/**
+	 * XORs len bytes of src at srcOff into dest at destOff, eight bytes at a
+	 * time. The JIT turns the long lane accesses into plain (possibly
+	 * unaligned) loads and stores, which is several times faster than a
+	 * loop over bytes.
+	 * @param dest
+	 * @param destOff
+	 * @param src
+	 * @param srcOff
+	 * @param len
+	 */
+	public static void xorBytes(byte[] dest, int destOff, byte[] src, int srcOff, int len) {
+		int k = 0;
+		for (; k <= len - 8; k += 8) {
+			long d = (long)LONG_LANES.get(dest, destOff + k);
+			long s = (long)LONG_LANES.get(src, srcOff + k);
+			LONG_LANES.set(dest, destOff + k, d ^ s);
+		}
+		for (; k < len; k++) {
+			dest[destOff + k] ^= src[srcOff + k];
+		}
+	}
+	
 	/**
 	 * Converts a char array to byte array 
 	 * @param charArray
@@ -49,5 +49,17 @@ public interface Zip4jConstants {
     static final int ENC_METHOD_AES = 99;
     
     //AES Key Strength
+    static final int AES_STRENGTH_128 = 0x01;
+    static final int AES_STRENGTH_192 = 0x02;
     static final int AES_STRENGTH_256 = 0x03;
+    
+    //AES vendor versions, AE-1 stores the CRC, AE-2 stores 0 and relies on the MAC
+    static final int AES_VERSION_AE1 = 0x01;
+    static final int AES_VERSION_AE2 = 0x02;
+    
+    //AES keystream backends
+    static final int KEYSTREAM_BACKEND_AUTO = 0;
+    static final int KEYSTREAM_BACKEND_JCA = 1;
+    static final int KEYSTREAM_BACKEND_AES_ENGINE = 2;
+    static final int KEYSTREAM_BACKEND_BITSLICED = 3;
 }	